@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servioticy.api.queue.JsonEnvelopeCodec;
+import com.servioticy.api.queue.SmileEnvelopeCodec;
+
+/**
+ * Building the message of a sensor update for the services queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+  private final String opId = "2f1d3c6a0b9e4d7f8a1c2e3b4d5f6a7b";
+  private final String soId = "1400000000000c1e2b3a4f5e6d7c8b9a0f1e2d3c4b5a6978";
+  private final String su = Samples.sensorUpdate(1400000000000L);
+
+  private final JsonEnvelopeCodec json = new JsonEnvelopeCodec();
+  private final SmileEnvelopeCodec smile = new SmileEnvelopeCodec();
+
+  /** The concatenation Paths used before the codecs. */
+  @Benchmark
+  public String concatenation() {
+    return "{\"opid\": \"" + opId + "\", \"soid\": \"" + soId +
+        "\", \"streamid\": \"" + Samples.STREAM_ID + "\", \"su\": " + su + "}";
+  }
+
+  @Benchmark
+  public Object jsonCodec() {
+    return json.encodeUpdate(opId, soId, Samples.STREAM_ID, su);
+  }
+
+  @Benchmark
+  public Object smileCodec() {
+    return smile.encodeUpdate(opId, soId, Samples.STREAM_ID, su);
+  }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servioticy.api.Paths;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.utils.Authorization;
+import com.servioticy.api.loadtest.StubKestrel;
+import com.servioticy.api.queue.QueueClients;
+import com.servioticy.api.queue.SpooledQueue;
+import com.servioticy.api.utils.ApiListener;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+
+/**
+ * The endpoints of Paths called directly, without the HTTP layer, on the
+ * stubs of the loadtest module: the in-memory CouchBase and SearchEngine,
+ * and StubKestrel for the queue. The stub latencies are set to 0 so that
+ * only the work of the API is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dstub.couchbase.latency=0", "-Dstub.search.latency=0",
+    "-Dstub.queue.latency=0" })
+public class PathsBenchmark {
+
+  private StubKestrel kestrel;
+  private Paths paths;
+  private HttpHeaders headers;
+  private String soId;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    kestrel = new StubKestrel(Integer.getInteger("stub.kestrel.port", 22133));
+    kestrel.start();
+    QueueClients.init();
+    SpooledQueue.init();
+
+    SO so = new SO(Samples.USER_ID, Samples.SO_DOCUMENT);
+    CouchBase.setSO(so);
+    soId = so.getId();
+
+    // What Jersey and the authorization filter would give to the resource
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("userId", Samples.USER_ID);
+    attributes.put("aut", new Authorization(Samples.USER_ID));
+    paths = new Paths();
+    inject(paths, "servletRequest", stub(HttpServletRequest.class, attributes));
+    inject(paths, "request", stub(Request.class, null));
+    headers = stub(HttpHeaders.class, null);
+
+    paths.putSOData(headers, soId, Samples.STREAM_ID, Samples.sensorUpdate(System.currentTimeMillis()));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    new ApiListener().contextDestroyed(null);
+    kestrel.stop();
+  }
+
+  @Benchmark
+  public Response getSO() {
+    return paths.getSO(headers, soId);
+  }
+
+  @Benchmark
+  public Response getLastUpdate() {
+    return paths.getLastUpdate(headers, soId, Samples.STREAM_ID);
+  }
+
+  @Benchmark
+  public Response putSOData() {
+    return paths.putSOData(headers, soId, Samples.STREAM_ID,
+        Samples.sensorUpdate(System.currentTimeMillis()));
+  }
+
+  private static void inject(Object target, String name, Object value) throws Exception {
+    Field field = target.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+  // Servlet request with the given attributes, headers without any header and
+  // a request without preconditions
+  private static <T> T stub(Class<T> type, final Map<String, Object> attributes) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getAttribute"))
+              return attributes.get(args[0]);
+            if (name.equals("getRequestHeaders"))
+              return new MultivaluedMapImpl();
+            if (name.equals("evaluatePreconditions"))
+              return null;
+            throw new UnsupportedOperationException(name);
+          }
+        }));
+  }
+}
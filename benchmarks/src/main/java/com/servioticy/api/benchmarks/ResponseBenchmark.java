@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.datamodel.Data;
+
+/**
+ * Serializing the history of a stream with Data.responseAllData, as
+ * getSOData and searchUpdates do for every window of updates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ResponseBenchmark {
+
+  @Param({ "10", "1000", "100000" })
+  public int items;
+
+  private List<Data> dataItems;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SO so = new SO(Samples.USER_ID, Samples.SO_DOCUMENT);
+    long now = System.currentTimeMillis();
+    dataItems = new ArrayList<Data>(items);
+    for (int i = 0; i < items; i++)
+      dataItems.add(new Data(so, Samples.STREAM_ID, Samples.sensorUpdate(now - i * 1000L)));
+  }
+
+  @Benchmark
+  public String responseAllData() {
+    return Data.responseAllData(dataItems);
+  }
+}
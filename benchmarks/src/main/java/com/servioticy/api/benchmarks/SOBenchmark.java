@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.datamodel.Data;
+
+/**
+ * Loading a Service Object, from the cache and from its document, and
+ * validating a sensor update against it, as every request of Paths does.
+ * The Service Object is stored in the in-memory CouchBase of the loadtest module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dstub.couchbase.latency=0")
+public class SOBenchmark {
+
+  private SO so;
+  private String soId;
+  private String su;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    so = new SO(Samples.USER_ID, Samples.SO_DOCUMENT);
+    CouchBase.setSO(so);
+    soId = so.getId();
+    su = Samples.sensorUpdate(System.currentTimeMillis());
+    SOCache.get(soId);
+  }
+
+  @Benchmark
+  public SO cachedSO() {
+    return SOCache.get(soId);
+  }
+
+  @Benchmark
+  public SO parseSO() {
+    return new SO(Samples.USER_ID, Samples.SO_DOCUMENT);
+  }
+
+  @Benchmark
+  public Data validateUpdate() {
+    return new Data(so, Samples.STREAM_ID, su);
+  }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.benchmarks;
+
+/**
+ * Documents shared by the benchmarks.
+ */
+public class Samples {
+
+  public static final String USER_ID = "benchmark";
+  public static final String STREAM_ID = "location";
+
+  public static final String SO_DOCUMENT =
+      "{\"name\": \"Phone\", \"description\": \"Benchmark phone\", \"URL\": \"Web Object URL\"," +
+      " \"public\": \"false\", \"streams\": {\"location\": {\"channels\": {" +
+      "\"latitude\": {\"type\": \"Number\", \"unit\": \"degrees\"}," +
+      " \"longitude\": {\"type\": \"Number\", \"unit\": \"degrees\"}}," +
+      " \"description\": \"GPS outdoor location\", \"type\": \"sensor\"}}," +
+      " \"customFields\": {}, \"actions\": [], \"properties\": []}";
+
+  public static String sensorUpdate(long lastUpdate) {
+    return "{\"channels\": {\"latitude\": {\"current-value\": 41.3875}," +
+           " \"longitude\": {\"current-value\": 2.1686}}, \"lastUpdate\": " + lastUpdate + "}";
+  }
+}
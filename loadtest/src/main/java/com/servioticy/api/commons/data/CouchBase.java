@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.commons.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.loadtest.StubLatency;
+
+/**
+ * In-memory stand-in of the api-commons CouchBase class for the load tests.
+ *
+ * Data documents carry no key that this stub can read, so they are kept in
+ * insertion order under generated ids, bounded by stub.updates, and every
+ * stream shares the same history. The timestamp of an update is the time it
+ * was stored, in milliseconds.
+ */
+public class CouchBase {
+
+  private static final int MAX_UPDATES = Integer.getInteger("stub.updates", 100000);
+
+  private static final Map<String, SO> sos = new ConcurrentHashMap<String, SO>();
+  private static final Map<String, String> owners = new ConcurrentHashMap<String, String>();
+  private static final Map<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+  private static final Map<String, Actuation> actuations = new ConcurrentHashMap<String, Actuation>();
+  private static final AtomicLong sequence = new AtomicLong();
+  private static final LinkedHashMap<String, Update> updates = new LinkedHashMap<String, Update>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Update> eldest) {
+      return size() > MAX_UPDATES;
+    }
+  };
+
+  /** Id and timestamp of a stored update. */
+  public static class Update {
+    private final String id;
+    private final long timestamp;
+    private final Data data;
+
+    Update(String id, long timestamp, Data data) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.data = data;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+
+  public static void setSO(SO so) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    sos.put(so.getId(), so);
+  }
+
+  /** Remember the owner of a Service Object, for getAllSOs. */
+  public static void setOwner(String soId, String userId) {
+    owners.put(soId, userId);
+  }
+
+  public static String getAllSOs(String userId) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    StringBuilder sb = new StringBuilder("[");
+    for (Map.Entry<String, String> owner : owners.entrySet()) {
+      if (owner.getValue().equals(userId)) {
+        if (sb.length() > 1)
+          sb.append(", ");
+        sb.append('"').append(owner.getKey()).append('"');
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+  public static SO getSO(String soId) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    return sos.get(soId);
+  }
+
+  public static void deleteSO(String soId) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    sos.remove(soId);
+    owners.remove(soId);
+  }
+
+  public static void setData(Data data) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    synchronized (updates) {
+      String id = "u" + sequence.incrementAndGet();
+      updates.put(id, new Update(id, System.currentTimeMillis(), data));
+    }
+  }
+
+  public static Data getData(String id) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    synchronized (updates) {
+      Update update = updates.get(id);
+      return update == null ? null : update.data;
+    }
+  }
+
+  /** The latest update of any stream. */
+  public static Data getData(String soId, String streamId, long timestamp) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    synchronized (updates) {
+      Data last = null;
+      for (Update update : updates.values())
+        last = update.data;
+      return last;
+    }
+  }
+
+  public static void deleteData(String id) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    synchronized (updates) {
+      if (updates.remove(id) == null)
+        subscriptions.remove(id);
+    }
+  }
+
+  public static void setOpId(String opId, int expiration) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+  }
+
+  /** Ids of the latest updates, oldest first. */
+  public static List<String> getLatestIds(int max) {
+    synchronized (updates) {
+      List<String> ids = new ArrayList<String>(updates.keySet());
+      return ids.subList(Math.max(0, ids.size() - max), ids.size());
+    }
+  }
+
+  /** Timestamp of the latest update, -1 if there is none. */
+  public static long getLatestTimestamp() {
+    synchronized (updates) {
+      long last = -1;
+      for (Update update : updates.values())
+        last = update.timestamp;
+      return last;
+    }
+  }
+
+  /**
+   * Updates with a timestamp between from and to, both included when not
+   * null, at most max of them in the given order.
+   */
+  public static List<Update> findUpdates(Long from, Long to, boolean newestFirst, int max) {
+    List<Update> found = new ArrayList<Update>();
+    synchronized (updates) {
+      for (Update update : updates.values())
+        if ((from == null || update.timestamp >= from) && (to == null || update.timestamp <= to))
+          found.add(update);
+    }
+    if (newestFirst)
+      Collections.reverse(found);
+    return found.subList(0, Math.min(max, found.size()));
+  }
+
+  public static void setSubscription(Subscription subs) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    subscriptions.put(subs.getKey(), subs);
+  }
+
+  public static Subscription getSubscription(String key) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    return subscriptions.get(key);
+  }
+
+  public static void deleteSubscription(String key) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    subscriptions.remove(key);
+  }
+
+  /** Key of the subscription with the given id, or null. */
+  public static String findSubscriptionKey(String subsId) {
+    for (Subscription subs : subscriptions.values()) {
+      if (subs.getId().equals(subsId))
+        return subs.getKey();
+    }
+    return null;
+  }
+
+  /** Keys of the subscriptions of a Service Object. */
+  public static List<String> findSubscriptionKeys(String soId) {
+    List<String> keys = new ArrayList<String>();
+    Iterator<Subscription> it = subscriptions.values().iterator();
+    while (it.hasNext()) {
+      Subscription subs = it.next();
+      if (subs.getSO() != null && soId.equals(subs.getSO().getId()))
+        keys.add(subs.getKey());
+    }
+    return keys;
+  }
+
+  public static void setActuation(Actuation act) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    actuations.put(act.getId(), act);
+  }
+
+  public static Actuation getActuation(String id) {
+    StubLatency.pause(StubLatency.COUCHBASE);
+    return actuations.get(id);
+  }
+}
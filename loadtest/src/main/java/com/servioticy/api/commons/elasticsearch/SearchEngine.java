@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.commons.elasticsearch;
+
+import java.util.List;
+
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.loadtest.StubLatency;
+
+/**
+ * Stand-in of the api-commons SearchEngine class for the load tests. Queries
+ * are answered from the in-memory CouchBase stub: every stream returns the
+ * latest stub.history updates.
+ */
+public class SearchEngine {
+
+  private static final int HISTORY = Integer.getInteger("stub.history", 100);
+
+  public static List<String> getAllUpdatesId(String soId, String streamId) {
+    StubLatency.pause(StubLatency.SEARCH);
+    return CouchBase.getLatestIds(HISTORY);
+  }
+
+  public static List<String> searchUpdates(String soId, String streamId, SearchCriteria filter) {
+    StubLatency.pause(StubLatency.SEARCH);
+    return CouchBase.getLatestIds(HISTORY);
+  }
+
+  public static long getLastUpdateTimeStamp(String soId, String streamId) {
+    StubLatency.pause(StubLatency.SEARCH);
+    return CouchBase.getLatestTimestamp();
+  }
+
+  public static List<String> getAllSubscriptionsBySrcAndDst(String soId) {
+    StubLatency.pause(StubLatency.SEARCH);
+    return CouchBase.findSubscriptionKeys(soId);
+  }
+
+  public static String getSubscriptionDocId(String subsId) {
+    StubLatency.pause(StubLatency.SEARCH);
+    return CouchBase.findSubscriptionKey(subsId);
+  }
+}
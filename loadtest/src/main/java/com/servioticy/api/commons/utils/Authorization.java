@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.commons.utils;
+
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.data.Subscription;
+
+/**
+ * Stand-in of the api-commons Authorization class for the load tests, every
+ * request is authorized.
+ */
+public class Authorization {
+
+  private final String userId;
+
+  public Authorization(String userId) {
+    this.userId = userId;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public void checkAuthorization(SO so) {
+  }
+
+  public void checkOwner(Subscription subs) {
+  }
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.commons.utils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+
+/**
+ * Stand-in of the api-commons request filter for the load tests. The user is
+ * the value of the Authorization header, without any lookup.
+ */
+public class AuthorizationRequestFilter implements ContainerRequestFilter {
+
+  @Context
+  private HttpServletRequest servletRequest;
+
+  @Override
+  public ContainerRequest filter(ContainerRequest request) {
+    String userId = request.getHeaderValue("Authorization");
+    if (userId == null)
+      userId = "loadtest";
+    servletRequest.setAttribute("userId", userId);
+    servletRequest.setAttribute("aut", new Authorization(userId));
+    return request;
+  }
+}
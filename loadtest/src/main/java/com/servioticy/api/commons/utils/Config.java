@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.commons.utils;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stand-in of the api-commons Config listener for the load tests, it does not
+ * connect to any backend.
+ */
+public class Config implements ServletContextListener {
+
+  public static int getOpIdExpiration() {
+    return 60;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+  }
+}
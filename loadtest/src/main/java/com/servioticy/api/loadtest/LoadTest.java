@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.metrics.LatencyRecorder;
+
+/**
+ * Load test of the public API. The webapp is booted from its web.xml in an
+ * embedded Jetty, with in-memory stubs for Couchbase, Elasticsearch (its Java
+ * client and its REST interface) and Kestrel, and a mix of ingest, read,
+ * search and actuation requests is sent to it. Throughput and latency
+ * percentiles are reported per kind of request.
+ *
+ * The load is open: requests are scheduled at a constant rate whatever the
+ * response times, and the latency of each one is measured from the time it
+ * was scheduled, so a stall of the server counts for all the requests that
+ * should have been sent meanwhile instead of delaying them unmeasured. The
+ * client threads only bound the concurrency, a request that finds them all
+ * busy is sent late and reported as such.
+ *
+ * Configured with system properties:
+ *   loadtest.rate      requests per second (1000)
+ *   loadtest.threads   client threads, maximum concurrent requests (64)
+ *   loadtest.duration  seconds of measurement (60)
+ *   loadtest.warmup    seconds of warm up, not measured (10)
+ *   loadtest.sos       Service Objects used by the clients (100)
+ *   loadtest.mix       weight of each kind of request (ingest=65,
+ *                      idempotent=5,last=15,history=5,search=5,actuation=5)
+ *   loadtest.port      HTTP port (8080)
+ *   loadtest.webapp    webapp directory (../src/main/webapp)
+ * and the stub.* properties of StubLatency, CouchBase and SearchEngine, and
+ * the ports stub.kestrel.port (22133) and stub.search.port (9200, it must be
+ * the search_http_port of config.properties).
+ */
+public class LoadTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final String USER_ID = "loadtest";
+  private static final int KEYS = 100000;
+  private static final String STREAM_ID = "location";
+  private static final String SO_DOCUMENT =
+      "{\"name\": \"Phone\", \"description\": \"Load test phone\", \"URL\": \"Web Object URL\"," +
+      " \"public\": \"false\", \"streams\": {\"location\": {\"channels\": {" +
+      "\"latitude\": {\"type\": \"Number\", \"unit\": \"degrees\"}," +
+      " \"longitude\": {\"type\": \"Number\", \"unit\": \"degrees\"}}," +
+      " \"description\": \"GPS outdoor location\", \"type\": \"sensor\"}}," +
+      " \"customFields\": {}, \"actions\": [{\"name\": \"ring\", \"description\": \"Ring the phone\"}]," +
+      " \"properties\": []}";
+
+  private final String base;
+  private final List<String> kinds = new ArrayList<String>();
+  private final int[] weights;
+  private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<String, LatencyRecorder>();
+  private final List<String> soIds = new ArrayList<String>();
+  private final AtomicLong late = new AtomicLong();
+
+  LoadTest(String base, String mix) {
+    this.base = base;
+    String[] parts = mix.split(",");
+    weights = new int[parts.length];
+    int total = 0;
+    for (int i = 0; i < parts.length; i++) {
+      String[] kv = parts[i].trim().split("=");
+      kinds.add(kv[0]);
+      total += Integer.parseInt(kv[1]);
+      weights[i] = total;
+      recorders.put(kv[0], new LatencyRecorder(kv[0]));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = Integer.getInteger("loadtest.port", 8080);
+    double rate = Double.parseDouble(System.getProperty("loadtest.rate", "1000"));
+    int threads = Integer.getInteger("loadtest.threads", 64);
+    int duration = Integer.getInteger("loadtest.duration", 60);
+    int warmup = Integer.getInteger("loadtest.warmup", 10);
+    int sos = Integer.getInteger("loadtest.sos", 100);
+    String mix = System.getProperty("loadtest.mix",
+        "ingest=65,idempotent=5,last=15,history=5,search=5,actuation=5");
+
+    StubKestrel kestrel = new StubKestrel(Integer.getInteger("stub.kestrel.port", 22133));
+    kestrel.start();
+    StubSearch search = new StubSearch(Integer.getInteger("stub.search.port", 9200));
+    search.start();
+
+    Server server = new Server(port);
+    WebAppContext webapp = new WebAppContext();
+    webapp.setContextPath("/");
+    webapp.setResourceBase(new File(System.getProperty("loadtest.webapp", "../src/main/webapp")).getAbsolutePath());
+    // Classes come from this classpath, where the stubs shadow api-commons
+    webapp.setParentLoaderPriority(true);
+    server.setHandler(webapp);
+    server.start();
+
+    LoadTest test = new LoadTest("http://127.0.0.1:" + port, mix);
+    test.createSOs(sos);
+    test.run(threads, rate, warmup, duration);
+    test.report(rate, duration, kestrel.getMessages());
+
+    server.stop();
+    search.stop();
+    kestrel.stop();
+  }
+
+  void createSOs(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      Result result = request("POST", "/", "application/json", SO_DOCUMENT);
+      if (result.status != 201)
+        throw new IOException("Unable to create a Service Object: HTTP " + result.status);
+      String soId = mapper.readTree(result.body).path("id").asText();
+      CouchBase.setOwner(soId, USER_ID);
+      soIds.add(soId);
+    }
+  }
+
+  void run(int threads, double rate, int warmup, int duration) throws InterruptedException {
+    final long interval = (long) (1000000000L / rate);
+    final long start = System.nanoTime();
+    final long measured = start + warmup * 1000000000L;
+    final long end = measured + duration * 1000000000L;
+    final AtomicLong next = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            // Take the next slot of the schedule, wait for it if it is still ahead
+            long scheduled;
+            while ((scheduled = start + next.getAndIncrement() * interval) < end) {
+              long wait = scheduled - System.nanoTime();
+              if (wait > 0)
+                LockSupport.parkNanos(wait);
+              step(random, scheduled, scheduled >= measured);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "loadtest-" + t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    done.await();
+  }
+
+  private void step(Random random, long scheduled, boolean measuring) {
+    int pick = random.nextInt(weights[weights.length - 1]);
+    int i = 0;
+    while (pick >= weights[i])
+      i++;
+    String kind = kinds.get(i);
+    String soId = soIds.get(random.nextInt(soIds.size()));
+    String stream = "/" + soId + "/streams/" + STREAM_ID;
+
+    // Sent over a millisecond after its slot, all the threads were busy
+    if (measuring && System.nanoTime() - scheduled > 1000000)
+      late.incrementAndGet();
+
+    Result result;
+    try {
+      if (kind.equals("ingest"))
+        result = request("PUT", stream, "application/json", sensorUpdate(System.currentTimeMillis(), random));
+      else if (kind.equals("idempotent"))
+        // Keys from a bounded set, so that some of them are retries
+        result = request("PUT", stream, "application/json", sensorUpdate(System.currentTimeMillis(), random),
+            "key-" + random.nextInt(KEYS));
+      else if (kind.equals("last"))
+        result = request("GET", stream + "/lastUpdate", null, null);
+      else if (kind.equals("history"))
+        result = request("GET", stream + "?limit=100", null, null);
+      else if (kind.equals("search"))
+        result = request("POST", stream + "/search", "application/json",
+            "{\"timerange\": true, \"rangefrom\": 0, \"rangeto\": " + System.currentTimeMillis() + "}");
+      else if (kind.equals("actuation"))
+        result = request("POST", "/" + soId + "/actuations/ring", "text/plain", "{\"loud\": true}");
+      else
+        throw new IllegalArgumentException("Unknown kind of request " + kind);
+    } catch (IOException e) {
+      result = new Result(599, null);
+    }
+
+    if (measuring) {
+      LatencyRecorder recorder = recorders.get(kind);
+      recorder.recordSince(scheduled);
+      if (result.status >= 400)
+        recorder.recordError(result.status);
+    }
+  }
+
+  private static String sensorUpdate(long lastUpdate, Random random) {
+    return "{\"channels\": {\"latitude\": {\"current-value\": " + (41 + random.nextDouble()) + "}," +
+           " \"longitude\": {\"current-value\": " + (2 + random.nextDouble()) + "}}, \"lastUpdate\": " +
+           lastUpdate + "}";
+  }
+
+  void report(double rate, int duration, long queued) {
+    System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %8s",
+        "request", "count", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors"));
+    long total = 0;
+    for (LatencyRecorder recorder : recorders.values()) {
+      long errors = 0;
+      for (int status = 400; status < 600; status++)
+        errors += recorder.getErrors(status);
+      total += recorder.getCount();
+      System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.1f %10.3f %10.3f %10.3f %8d",
+          recorder.getName(), recorder.getCount(), recorder.getCount() / (double) duration,
+          recorder.getQuantile(0.5) / 1000.0, recorder.getQuantile(0.99) / 1000.0,
+          recorder.getQuantile(0.999) / 1000.0, errors));
+    }
+    System.out.println(String.format(Locale.ROOT, "total %d requests, %.1f req/s of %.1f scheduled, %d queue messages",
+        total, total / (double) duration, rate, queued));
+    if (late.get() > 0)
+      System.out.println(String.format(Locale.ROOT, "%d requests sent late, all the client threads were busy",
+          late.get()));
+  }
+
+  private static class Result {
+    final int status;
+    final String body;
+
+    Result(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  private Result request(String method, String path, String contentType, String body) throws IOException {
+    return request(method, path, contentType, body, null);
+  }
+
+  private Result request(String method, String path, String contentType, String body,
+                         String idempotencyKey) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+    conn.setRequestMethod(method);
+    conn.setRequestProperty("Authorization", USER_ID);
+    conn.setRequestProperty("Accept", "application/json");
+    if (idempotencyKey != null)
+      conn.setRequestProperty("Idempotency-Key", idempotencyKey);
+    if (body != null) {
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type", contentType);
+      OutputStream out = conn.getOutputStream();
+      out.write(body.getBytes(UTF8));
+      out.close();
+    }
+    int status = conn.getResponseCode();
+    InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+    String response = null;
+    if (in != null) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int n;
+      while ((n = in.read(chunk)) != -1)
+        buffer.write(chunk, 0, n);
+      in.close();
+      response = new String(buffer.toByteArray(), UTF8);
+    }
+    return new Result(status, response);
+  }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal Kestrel stand-in speaking the memcached text protocol, enough for
+ * the queue client: every set is accepted after the injected queue latency
+ * and discarded, and every get finds the queue empty.
+ */
+public class StubKestrel implements Runnable {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final ServerSocket server;
+  private final AtomicLong messages = new AtomicLong();
+  private volatile boolean running = true;
+
+  public StubKestrel(int port) throws IOException {
+    server = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+  }
+
+  public void start() {
+    Thread t = new Thread(this, "stub-kestrel");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void stop() throws IOException {
+    running = false;
+    server.close();
+  }
+
+  public long getMessages() {
+    return messages.get();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        final Socket socket = server.accept();
+        Thread t = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        }, "stub-kestrel-connection");
+        t.setDaemon(true);
+        t.start();
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String line;
+      while ((line = readLine(in)) != null) {
+        String[] parts = line.split(" ");
+        String command = parts[0];
+        if (command.equals("set") || command.equals("add") || command.equals("replace")) {
+          // set <queue> <flags> <exptime> <bytes> [noreply]
+          int bytes = Integer.parseInt(parts[4]);
+          skip(in, bytes + 2);
+          StubLatency.pause(StubLatency.QUEUE);
+          messages.incrementAndGet();
+          if (!(parts.length > 5 && parts[5].equals("noreply")))
+            out.write("STORED\r\n".getBytes(ASCII));
+        } else if (command.equals("get") || command.equals("gets")) {
+          out.write("END\r\n".getBytes(ASCII));
+        } else if (command.equals("version")) {
+          out.write("VERSION stub\r\n".getBytes(ASCII));
+        } else if (command.equals("quit")) {
+          break;
+        } else {
+          out.write("ERROR\r\n".getBytes(ASCII));
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Client gone
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = in.read()) != -1) {
+      if (c == '\n')
+        break;
+      if (c != '\r')
+        line.write(c);
+    }
+    if (c == -1 && line.size() == 0)
+      return null;
+    return new String(line.toByteArray(), ASCII);
+  }
+
+  private static void skip(InputStream in, int bytes) throws IOException {
+    while (bytes > 0) {
+      long skipped = in.skip(bytes);
+      if (skipped <= 0) {
+        if (in.read() == -1)
+          throw new IOException("Connection closed");
+        skipped = 1;
+      }
+      bytes -= skipped;
+    }
+  }
+}
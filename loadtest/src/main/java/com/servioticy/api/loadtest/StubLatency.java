@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.loadtest;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency injected by the backend stubs, in microseconds, from the system
+ * properties stub.couchbase.latency, stub.search.latency and
+ * stub.queue.latency.
+ */
+public class StubLatency {
+
+  public static final long COUCHBASE = Long.getLong("stub.couchbase.latency", 500);
+  public static final long SEARCH = Long.getLong("stub.search.latency", 2000);
+  public static final long QUEUE = Long.getLong("stub.queue.latency", 200);
+
+  public static void pause(long micros) {
+    if (micros > 0)
+      LockSupport.parkNanos(micros * 1000);
+  }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.commons.data.CouchBase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in of the REST interface of the search servers, enough for
+ * the requests the API sends through SearchHttp: the searches of the history
+ * pages (_search, sorted and limited by a time range) and of the latest
+ * update of each stream (_msearch), answered from the in-memory CouchBase
+ * stub, and the GET and PUT of the Idempotency-Key markers, kept in memory.
+ * Every stream shares the same history, as in the SearchEngine stub.
+ * Aggregations are not supported.
+ */
+public class StubSearch implements HttpHandler {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final HttpServer server;
+  private final Map<String, JsonNode> documents = new ConcurrentHashMap<String, JsonNode>();
+
+  public StubSearch(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 128);
+    server.createContext("/", this);
+    server.setExecutor(Executors.newCachedThreadPool());
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      StubLatency.pause(StubLatency.SEARCH);
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      String body = read(exchange.getRequestBody());
+
+      if (path.endsWith("/_msearch"))
+        reply(exchange, 200, multiSearch(body));
+      else if (path.endsWith("/_search"))
+        reply(exchange, 200, search(mapper.readTree(body)));
+      else if (method.equals("PUT")) {
+        documents.put(path, mapper.readTree(body));
+        reply(exchange, 201, mapper.createObjectNode().put("created", true));
+      } else if (method.equals("GET")) {
+        JsonNode source = documents.get(path);
+        ObjectNode document = mapper.createObjectNode().put("found", source != null);
+        if (source != null)
+          document.set("_source", source);
+        reply(exchange, source != null ? 200 : 404, document);
+      } else {
+        reply(exchange, 400, mapper.createObjectNode().put("error", "Unsupported request " + method + " " + path));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  // The header lines are ignored, every query goes to the updates
+  private ObjectNode multiSearch(String body) throws IOException {
+    ObjectNode result = mapper.createObjectNode();
+    ArrayNode responses = result.putArray("responses");
+    String[] lines = body.split("\n");
+    for (int i = 1; i < lines.length; i += 2)
+      responses.add(search(mapper.readTree(lines[i])));
+    return result;
+  }
+
+  private ObjectNode search(JsonNode query) {
+    // The field of the timestamps is the one the updates are sorted by
+    JsonNode sort = query.path("sort").path(0);
+    String timeField = sort.fieldNames().hasNext() ? sort.fieldNames().next() : "doc.lastUpdate";
+    boolean newestFirst = "desc".equals(sort.path(timeField).path("order").asText());
+
+    Long from = null;
+    Long to = null;
+    for (JsonNode filter : query.path("query").path("filtered").path("filter").path("bool").path("must")) {
+      JsonNode range = filter.path("range").path(timeField);
+      if (range.has("gte"))
+        from = range.path("gte").asLong();
+      if (range.has("lte"))
+        to = range.path("lte").asLong();
+    }
+
+    ObjectNode result = mapper.createObjectNode();
+    ArrayNode hits = result.putObject("hits").putArray("hits");
+    for (CouchBase.Update update : CouchBase.findUpdates(from, to, newestFirst, query.path("size").asInt(10))) {
+      ObjectNode hit = hits.addObject();
+      hit.put("_id", update.getId());
+      hit.putArray("sort").add(update.getTimestamp());
+      if (!query.path("_source").isBoolean())
+        source(hit.putObject("_source"), timeField, update.getTimestamp());
+    }
+    return result;
+  }
+
+  // Nested object with the dotted field
+  private static void source(ObjectNode node, String field, long value) {
+    Iterator<String> names = Arrays.asList(field.split("\\.")).iterator();
+    String name = names.next();
+    while (names.hasNext()) {
+      node = node.putObject(name);
+      name = names.next();
+    }
+    node.put(name, value);
+  }
+
+  private static void reply(HttpExchange exchange, int status, JsonNode json) throws IOException {
+    byte[] bytes = json.toString().getBytes(UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    int n;
+    while ((n = in.read(chunk)) != -1)
+      buffer.write(chunk, 0, n);
+    return new String(buffer.toByteArray(), UTF8);
+  }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api;
+
+import java.util.Date;
+import java.util.Locale;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.actuation.ActuationDispatcher;
+import com.servioticy.api.actuation.ActuationStatus;
+import com.servioticy.api.auth.AuthorizationCache;
+import com.servioticy.api.cache.LastUpdateCache;
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.cache.SubscriptionIndex;
+import com.servioticy.api.cache.TtlCache;
+import com.servioticy.api.data.WriteBehind;
+import com.servioticy.api.idempotency.IdempotencyKeys;
+import com.servioticy.api.live.LiveUpdates;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.queue.CircuitBreaker;
+import com.servioticy.api.queue.QueueClients;
+import com.servioticy.api.queue.SpooledQueue;
+
+/**
+ * Latency, throughput and error metrics in the Prometheus text format.
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+  private static final int MIN_EXP = 8;
+  private static final int MAX_EXP = 24;
+
+  @GET
+  @Produces("text/plain; version=0.0.4")
+  public Response getMetrics() {
+
+    StringBuilder sb = new StringBuilder(4096);
+
+    latencies(sb, "servioticy_endpoint_latency_seconds", "endpoint", Metrics.getEndpoints());
+    latencies(sb, "servioticy_backend_latency_seconds", "call", Metrics.getBackends());
+
+    sb.append("# TYPE servioticy_endpoint_errors_total counter\n");
+    for (LatencyRecorder recorder : Metrics.getEndpoints()) {
+      for (int status = 400; status < 600; status++) {
+        long errors = recorder.getErrors(status);
+        if (errors > 0)
+          sb.append("servioticy_endpoint_errors_total{endpoint=\"").append(recorder.getName())
+            .append("\",status=\"").append(status).append("\"} ").append(errors).append('\n');
+      }
+    }
+
+    cache(sb, "so", SOCache.getCache());
+    cache(sb, "last_update", LastUpdateCache.getCache());
+    cache(sb, "subscription", SubscriptionIndex.getCache());
+    cache(sb, "auth_token", AuthorizationCache.getTokenCache());
+    cache(sb, "auth_decision", AuthorizationCache.getDecisionCache());
+    cache(sb, "idempotency", IdempotencyKeys.getCache());
+
+    sb.append("# TYPE servioticy_queue_clients_available gauge\n");
+    sb.append("servioticy_queue_clients_available{queue=\"updates\"} ")
+      .append(QueueClients.updates().available()).append('\n');
+    sb.append("servioticy_queue_clients_available{queue=\"actions\"} ")
+      .append(QueueClients.actions().available()).append('\n');
+    sb.append("# TYPE servioticy_queue_spooled gauge\n");
+    sb.append("servioticy_queue_spooled ").append(SpooledQueue.getSpooled()).append('\n');
+    sb.append("# TYPE servioticy_queue_breaker_open gauge\n");
+    sb.append("servioticy_queue_breaker_open ")
+      .append(SpooledQueue.getState() == CircuitBreaker.State.CLOSED ? 0 : 1).append('\n');
+    sb.append("# TYPE servioticy_write_behind_pending gauge\n");
+    sb.append("servioticy_write_behind_pending ").append(WriteBehind.getPending()).append('\n');
+    sb.append("# TYPE servioticy_actuations_pending gauge\n");
+    sb.append("servioticy_actuations_pending ").append(ActuationDispatcher.getPending()).append('\n');
+    sb.append("# TYPE servioticy_actuations_waiting gauge\n");
+    sb.append("servioticy_actuations_waiting ").append(ActuationStatus.getWaiting()).append('\n');
+    sb.append("# TYPE servioticy_live_watchers gauge\n");
+    sb.append("servioticy_live_watchers ").append(LiveUpdates.getWatchers()).append('\n');
+
+    return Response.ok(sb.toString())
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  // Histogram buckets from 2^MIN_EXP us (256 us) to 2^MAX_EXP us (about 16.8 s)
+  private static void latencies(StringBuilder sb, String metric, String label,
+                                Iterable<LatencyRecorder> recorders) {
+    sb.append("# TYPE ").append(metric).append(" histogram\n");
+    for (LatencyRecorder recorder : recorders) {
+      String name = label + "=\"" + recorder.getName() + "\"";
+      long[] counts = recorder.getCumulativeCounts(MIN_EXP, MAX_EXP);
+      for (int k = 0; k < counts.length - 1; k++)
+        sb.append(metric).append("_bucket{").append(name).append(",le=\"")
+          .append(seconds(1L << (MIN_EXP + k))).append("\"} ").append(counts[k]).append('\n');
+      long total = counts[counts.length - 1];
+      sb.append(metric).append("_bucket{").append(name).append(",le=\"+Inf\"} ").append(total).append('\n');
+      sb.append(metric).append("_sum{").append(name).append("} ")
+        .append(seconds(recorder.getSumMicros())).append('\n');
+      sb.append(metric).append("_count{").append(name).append("} ").append(total).append('\n');
+    }
+  }
+
+  private static void cache(StringBuilder sb, String name, TtlCache<?, ?> cache) {
+    sb.append("servioticy_cache_hits_total{cache=\"").append(name).append("\"} ")
+      .append(cache.getHits()).append('\n');
+    sb.append("servioticy_cache_misses_total{cache=\"").append(name).append("\"} ")
+      .append(cache.getMisses()).append('\n');
+    sb.append("servioticy_cache_evictions_total{cache=\"").append(name).append("\"} ")
+      .append(cache.getEvictions()).append('\n');
+    sb.append("servioticy_cache_size{cache=\"").append(name).append("\"} ")
+      .append(cache.size()).append('\n');
+  }
+
+  private static String seconds(long micros) {
+    return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+  }
+}
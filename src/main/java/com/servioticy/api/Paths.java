@@ -18,8 +18,15 @@ package com.servioticy.api;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -31,13 +38,30 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.actuation.ActuationDispatcher;
+import com.servioticy.api.actuation.ActuationStatus;
+import com.servioticy.api.admission.AdmissionControl;
+import com.servioticy.api.auth.AuthorizationCache;
+import com.servioticy.api.cache.LastUpdateCache;
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.cache.SORevision;
+import com.servioticy.api.cache.SubscriptionIndex;
 import com.servioticy.api.commons.data.Actuation;
 import com.servioticy.api.commons.data.CouchBase;
 import com.servioticy.api.commons.data.SO;
@@ -48,14 +72,42 @@ import com.servioticy.api.commons.elasticsearch.SearchEngine;
 import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
 import com.servioticy.api.commons.utils.Authorization;
 import com.servioticy.api.commons.utils.Config;
-import com.servioticy.queueclient.QueueClient;
-import com.servioticy.queueclient.QueueClientException;
+import com.servioticy.api.data.Aggregation;
+import com.servioticy.api.data.BulkCouchBase;
+import com.servioticy.api.data.DataStreamer;
+import com.servioticy.api.data.Durability;
+import com.servioticy.api.data.LastUpdates;
+import com.servioticy.api.data.SOListing;
+import com.servioticy.api.data.UpdatesPage;
+import com.servioticy.api.data.WriteBehind;
+import com.servioticy.api.idempotency.IdempotencyKeys;
+import com.servioticy.api.jobs.DeletionJob;
+import com.servioticy.api.jobs.DeletionJobs;
+import com.servioticy.api.live.EventStream;
+import com.servioticy.api.live.LiveUpdates;
+import com.servioticy.api.live.Watcher;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.queue.Envelopes;
+import com.servioticy.api.queue.SpooledQueue;
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.Backend;
 
 
 @Path("/")
 public class Paths {
 
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final LatencyRecorder couchbaseSetData = Metrics.backend("couchbase.setData");
+  private static final LatencyRecorder couchbaseSetOpId = Metrics.backend("couchbase.setOpId");
+  private static final LatencyRecorder couchbaseGetData = Metrics.backend("couchbase.getData");
+  private static final LatencyRecorder searchUpdatesIds = Metrics.backend("search.updates");
+  private static final LatencyRecorder searchLastUpdate = Metrics.backend("search.lastUpdate");
+  private static final LatencyRecorder searchSubscription = Metrics.backend("search.subscription");
+
   @Context UriInfo uriInfo;
+  @Context Request request;
   @Context ServletContext servletContext;
   @Context
   private transient HttpServletRequest servletRequest;
@@ -92,14 +144,47 @@ public class Paths {
   @GET
   @Produces("application/json")
   @Consumes(MediaType.APPLICATION_JSON)
-  public Response getAllSOs(@Context HttpHeaders hh) {
+  public Response getAllSOs(@Context HttpHeaders hh, @QueryParam("limit") Integer limit,
+                    @QueryParam("cursor") String cursor, @QueryParam("fields") String fields) {
 
     String userId = (String) this.servletRequest.getAttribute("userId");
 
     String sos = CouchBase.getAllSOs(userId);
 
-    return Response.ok(sos)
-             .header("Server", "api.servIoTicy")
+    // Without paging parameters the whole listing is returned
+    if (limit == null && cursor == null && fields == null)
+      return Response.ok(sos)
+               .header("Server", "api.servIoTicy")
+               .header("Date", new Date(System.currentTimeMillis()))
+               .build();
+
+    int maxLimit = ApiConfig.getInt("so_list_max_limit", 1000);
+    if (limit == null || limit > maxLimit)
+      limit = maxLimit;
+    if (limit <= 0)
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "The limit must be positive");
+
+    Set<String> projection = null;
+    if (fields != null) {
+      projection = new HashSet<String>();
+      for (String field : fields.split(","))
+        if (!field.trim().isEmpty())
+          projection.add(field.trim());
+    }
+
+    // Get one page of the Service Objects, written while the projected documents are loaded.
+    // It still reads the whole listing, see SOListing
+    SOListing page = SOListing.page(sos, cursor, limit, projection);
+
+    ResponseBuilder rb = Response.ok(page);
+    if (page.getNextCursor() != null) {
+      UriBuilder ub = uriInfo.getRequestUriBuilder()
+                        .replaceQueryParam("cursor", page.getNextCursor())
+                        .replaceQueryParam("limit", limit);
+      rb.header("Link", "<" + ub.build() + ">; rel=\"next\"");
+    }
+
+    return rb.header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
   }
@@ -112,14 +197,24 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
+
+    // Nothing to send if the client has this version
+    SORevision revision = SOCache.revision(so);
+    EntityTag tag = revision.getTag("so");
+    Response notModified = notModified(tag, revision.getLastModified());
+    if (notModified != null)
+      return notModified;
 
     return Response.ok(so.responseGetSO())
+             .tag(tag)
+             .lastModified(revision.getLastModified())
+             .header("Cache-Control", "no-cache")
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
@@ -138,13 +233,14 @@ public class Paths {
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
     // Update the Service Object
     so.update(body);
 
     // Store in Couchbase
     CouchBase.setSO(so);
+    SOCache.invalidate(soId);
 
     // Construct the response uri
     UriBuilder ub = uriInfo.getAbsolutePathBuilder();
@@ -164,34 +260,104 @@ public class Paths {
                     @PathParam("streamId") String streamId, String body) {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+    String userId = (String) this.servletRequest.getAttribute("userId");
+
+    // Already being deleted by this user through this node
+    DeletionJob running = DeletionJobs.getDeletingSO(soId);
+    if (running != null && running.getUserId().equals(userId))
+      return deletionAccepted(running);
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
-    // Delete all soId's updates
-    List<String> ids = SearchEngine.getAllUpdatesId(soId, streamId);
-    for (String id : ids)
-        CouchBase.deleteData(id);
+    // Delete all soId's updates and all the subscriptions that have soId as source
+    // or destination in the background, and then the Service Object. If the job
+    // fails the Service Object stays, deleting it again retries the job
+    DeletionJob job = DeletionJobs.submit(new DeletionJob(userId, soId, streamId, true));
 
-    // Delete all the subscriptions that have soId as source or destination
-    ids = SearchEngine.getAllSubscriptionsBySrcAndDst(soId);
-    for (String id : ids)
-        CouchBase.deleteData(id);
+    return deletionAccepted(job);
 
-    CouchBase.deleteSO(soId);
+  }
 
-    return Response.noContent()
-    .header("Server", "api.servIoTicy")
-    .header("Date", new Date(System.currentTimeMillis()))
-    .build();
 
+  @Path("/jobs/{jobId}")
+  @GET
+  @Produces("application/json")
+  public Response getJob(@Context HttpHeaders hh, @PathParam("jobId") String jobId) {
+
+    String userId = (String) this.servletRequest.getAttribute("userId");
+
+    // Only the user that started the job can see it, and only through the node that runs it
+    DeletionJob job = DeletionJobs.get(jobId);
+    if (job == null || !job.getUserId().equals(userId))
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The job was not found.");
+
+    return Response.ok(job.toJson())
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  private Response deletionAccepted(DeletionJob job) {
+    URI jobUri = uriInfo.getBaseUriBuilder().path("jobs").path(job.getId()).build();
+
+    return Response.status(Response.Status.ACCEPTED)
+             .entity(job.toJson())
+             .location(jobUri)
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  // Get a subscription by its id, with the document key cached by SubscriptionIndex if possible
+  private static Subscription findSubscription(String subsId) {
+    String subsKey = SubscriptionIndex.getKey(subsId);
+    if (subsKey != null) {
+      Subscription subs = CouchBase.getSubscription(subsKey);
+      if (subs != null)
+        return subs;
+      // Deleted through another node
+      SubscriptionIndex.invalidateKey(subsId);
+    }
+
+    // Get the Subscription Key
+    long start = System.nanoTime();
+    subsKey = SearchEngine.getSubscriptionDocId(subsId);
+    searchSubscription.recordSince(start);
+    if (subsKey == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Subscription was not found.");
+
+    Subscription subs = CouchBase.getSubscription(subsKey);
+    if (subs == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Subscription was not found.");
+    SubscriptionIndex.putKey(subsId, subsKey);
+    return subs;
   }
 
+  // Check the authorization of the caller on a Service Object, reusing its recent decisions
+  private void checkAuthorization(Authorization aut, SO so) {
+    AuthorizationCache.checkAuthorization((String) this.servletRequest.getAttribute("userId"), aut, so);
+  }
+
+  // 304 if the If-None-Match or If-Modified-Since of the request match this version, otherwise null
+  private Response notModified(EntityTag tag, Date lastModified) {
+    ResponseBuilder rb = lastModified == null ? request.evaluatePreconditions(tag)
+                                              : request.evaluatePreconditions(lastModified, tag);
+    if (rb == null)
+      return null;
+
+    return rb.tag(tag)
+             .lastModified(lastModified)
+             .header("Cache-Control", "no-cache")
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
 
   @Path("/{soId}/streams")
   @GET
@@ -201,12 +367,19 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
+
+    // Nothing to send if the client has this version
+    SORevision revision = SOCache.revision(so);
+    EntityTag tag = revision.getTag("streams");
+    Response notModified = notModified(tag, revision.getLastModified());
+    if (notModified != null)
+      return notModified;
 
     // Generate response
     String response = so.responseStreams();
@@ -218,6 +391,9 @@ public class Paths {
              .build();
 
     return Response.ok(response)
+             .tag(tag)
+             .lastModified(revision.getLastModified())
+             .header("Cache-Control", "no-cache")
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
@@ -230,23 +406,22 @@ public class Paths {
                     @PathParam("streamId") String streamId, String body) {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+    String userId = (String) this.servletRequest.getAttribute("userId");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
-    List<String> ids = SearchEngine.getAllUpdatesId(soId, streamId);
-    for (String id : ids)
-        CouchBase.deleteData(id);
+    LastUpdateCache.invalidate(soId, streamId);
 
-    return Response.noContent()
-    .header("Server", "api.servIoTicy")
-    .header("Date", new Date(System.currentTimeMillis()))
-    .build();
+    // Delete all the stream updates in the background
+    DeletionJob job = DeletionJobs.submit(new DeletionJob(userId, soId, streamId, false));
+
+    return deletionAccepted(job);
 
   }
 
@@ -258,53 +433,111 @@ public class Paths {
                     @PathParam("streamId") String streamId, String body) {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+    String userId = (String) this.servletRequest.getAttribute("userId");
 
     // Check if exists request data
     if (body.isEmpty())
       throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "No data in the request");
 
+    // A retry of an update already accepted gets the original response, whatever
+    // the limits (the key is scoped to the user, only its owner can replay it)
+    String idempotencyKey = hh.getRequestHeaders().getFirst("Idempotency-Key");
+    String key = null;
+    if (idempotencyKey != null && !idempotencyKey.isEmpty()) {
+      key = IdempotencyKeys.key(userId, soId, streamId, idempotencyKey);
+      IdempotencyKeys.Original original = IdempotencyKeys.find(key);
+      if (original != null)
+        return replayed(original.getResponse());
+    }
+
+    // Shed the update early if the user is over its limit or the backends are saturated
+    AdmissionControl.admitUser(userId, 1);
+
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
+
+    // Only authorized updates count for the limit of the Service Object
+    AdmissionControl.admitSO(soId, 1);
+
+    if (key == null)
+      return storeSOData(hh, so, streamId, body, null);
+
+    if (!IdempotencyKeys.begin(key))
+      throw new ServIoTWebApplicationException(Response.Status.CONFLICT,
+          "A request with the same Idempotency-Key is in progress");
+    try {
+      // It may have been accepted meanwhile
+      IdempotencyKeys.Original original = IdempotencyKeys.cached(key);
+      if (original != null)
+        return replayed(original.getResponse());
+      return storeSOData(hh, so, streamId, body, key);
+    } finally {
+      IdempotencyKeys.end(key);
+    }
+  }
+
+  // Store and queue a sensor update, remembering the response of its idempotency key if any
+  private Response storeSOData(HttpHeaders hh, SO so, String streamId, String body, String key) {
+    String soId = so.getId();
 
     // Create Data
     Data data = new Data(so, streamId, body);
 
-    // Generate opId
-    String opId = UUID.randomUUID().toString().replaceAll("-", "");
+    // Generate opId, the same for every retry of an idempotency key
+    String opId = key == null ? UUID.randomUUID().toString().replaceAll("-", "") : IdempotencyKeys.opId(key);
 
     // Create the response
     String response = body;
-
-    // Queueing
-    QueueClient sqc;
-    try {
-      sqc = QueueClient.factory("default.xml");
-      sqc.connect();
-      boolean res = sqc.put("{\"opid\": \"" + opId + "\", \"soid\": \"" + soId +
-          "\", \"streamid\": \"" + streamId + "\", \"su\": " + body + "}");
-      if (!res) {
-        response = "{ \"message\" : \"Stored but not queued\" }";
+    boolean stored = true;
+    long timestamp = LastUpdateCache.timestampOf(body);
+
+    // Queueing, on a backend thread while the update is stored, spooled if the queue is down
+    Object envelope = Envelopes.codec().encodeUpdate(opId, soId, streamId, body);
+    Future<Boolean> queued = SpooledQueue.submit(envelope);
+
+    // Store in Couchbase, now or through the write-behind stage
+    Durability durability = Durability.parse(hh.getRequestHeaders().getFirst("X-Durability"),
+        WriteBehind.getDefaultDurability());
+    if (durability == Durability.SYNC) {
+      long start = System.nanoTime();
+      CouchBase.setData(data);
+      couchbaseSetData.recordSince(start);
+
+      // Set the opId
+      start = System.nanoTime();
+      CouchBase.setOpId(opId, Config.getOpIdExpiration());
+      couchbaseSetOpId.recordSince(start);
+
+      // Keep it as the latest update of the stream and push it to the watchers
+      LastUpdateCache.update(soId, streamId, timestamp, data);
+      LiveUpdates.publish(soId, streamId, timestamp, data);
+    } else {
+      // Kept as the latest update and pushed to the watchers once the write-behind stage stores it
+      WriteBehind.Pending pending = WriteBehind.submit(data, opId, soId, streamId, timestamp);
+      if (durability == Durability.FLUSH && !pending.await(Backend.getTimeout())) {
+        if (pending.isDone())
+          throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+              "The update could not be stored");
+        // Still being written and already queued, a retry would store it twice
+        stored = false;
+        response = "{ \"message\" : \"Queued but not stored yet\" }";
       }
-      sqc.disconnect();
-
-    } catch (QueueClientException e) {
-      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
-          "SQueueClientException " + e.getMessage());
-    } catch (Exception e) {
-      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
-          "Undefined error in SQueueClient");
     }
 
-    // Store in Couchbase
-    CouchBase.setData(data);
+    // The update is already stored, a slow queue must not make the client retry it
+    Boolean isQueued = SpooledQueue.await(queued);
+    if (isQueued == null || !isQueued) {
+      response = stored ? "{ \"message\" : \"Stored but not queued\" }"
+                        : "{ \"message\" : \"Neither stored nor queued yet\" }";
+    }
 
-    // Set the opId
-    CouchBase.setOpId(opId, Config.getOpIdExpiration());
+    if (key != null)
+      IdempotencyKeys.accepted(key, opId, response);
 
 //    return Response.ok(body)
     return Response.status(Response.Status.ACCEPTED)
@@ -314,47 +547,207 @@ public class Paths {
              .build();
   }
 
-  @Path("/{soId}/streams/{streamId}")
-  @GET
+  private static Response replayed(String response) {
+    return Response.status(Response.Status.ACCEPTED)
+             .entity(response)
+             .header("Idempotent-Replayed", "true")
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  @Path("/{soId}/streams/{streamId}/batch")
+  @POST
   @Produces("application/json")
-  public Response getSOData(@Context HttpHeaders hh, @PathParam("soId") String soId,
-                    @PathParam("streamId") String streamId) {
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Response putSODataBatch(@Context HttpHeaders hh, @PathParam("soId") String soId,
+                    @PathParam("streamId") String streamId, String body) {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
+    // Check if exists request data
+    if (body.isEmpty())
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "No data in the request");
+
+    JsonNode items;
+    try {
+      items = mapper.readTree(body);
+    } catch (Exception e) {
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "Invalid JSON in the request");
+    }
+    if (items == null || !items.isArray())
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "The request must be an array of sensor updates");
+    if (items.size() > ApiConfig.getInt("batch_max_items", 1000))
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "Too many sensor updates in the request");
+
+    // Shed the updates early if the user is over its limit or the backends are saturated
+    AdmissionControl.admitUser((String) this.servletRequest.getAttribute("userId"), items.size());
+
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
-//    // Get the Service Object Data
-    List<String> IDs = SearchEngine.getAllUpdatesId(so.getId(), streamId);
+    // Only authorized updates count for the limit of the Service Object
+    AdmissionControl.admitSO(soId, items.size());
+
+    // Validate every item, the invalid ones are reported and skipped
+    int[] status = new int[items.size()];
+    String[] messages = new String[items.size()];
+    List<Integer> valid = new ArrayList<Integer>();
     List<Data> dataItems = new ArrayList<Data>();
+    List<String> opIds = new ArrayList<String>();
+    List<Object> envelopes = new ArrayList<Object>();
+    for (int i = 0; i < items.size(); i++) {
+      String su = items.get(i).toString();
+      try {
+        dataItems.add(new Data(so, streamId, su));
+      } catch (WebApplicationException e) {
+        status[i] = e.getResponse().getStatus();
+        messages[i] = "Invalid sensor update";
+        continue;
+      }
+      String opId = UUID.randomUUID().toString().replaceAll("-", "");
+      opIds.add(opId);
+      envelopes.add(Envelopes.codec().encodeUpdate(opId, soId, streamId, su));
+      valid.add(i);
+    }
 
-    for(String id : IDs)
-        dataItems.add(CouchBase.getData(id));
+    // Store in Couchbase
+    boolean[] stored = BulkCouchBase.setData(dataItems);
 
+    // Set the opIds
+    boolean[] opIdsSet = BulkCouchBase.setOpIds(opIds, Config.getOpIdExpiration());
 
-    if (dataItems == null || dataItems.size() == 0)
-      return Response.noContent()
+    // Only the updates stored with their opId are queued
+    List<Object> toQueue = new ArrayList<Object>();
+    for (int j = 0; j < valid.size(); j++) {
+      stored[j] &= opIdsSet[j];
+      if (stored[j])
+        toQueue.add(envelopes.get(j));
+    }
+
+    // Queueing, all the updates go pipelined through one connection, spooled if the queue is down.
+    // They are already stored, a slow queue must not make the client retry them
+    boolean[] queued = toQueue.isEmpty() ? new boolean[0] : SpooledQueue.await(SpooledQueue.submitAll(toQueue));
+    if (queued == null)
+      queued = new boolean[toQueue.size()];
+
+    // Generate response, one status per item in the request order
+    int k = 0;
+    for (int j = 0; j < valid.size(); j++) {
+      int i = valid.get(j);
+      if (!stored[j]) {
+        status[i] = Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+        messages[i] = "Not stored";
+      } else {
+        status[i] = Response.Status.ACCEPTED.getStatusCode();
+        if (!queued[k++])
+          messages[i] = "Stored but not queued";
+        long timestamp = LastUpdateCache.timestampOf(items.get(i).toString());
+        LastUpdateCache.update(soId, streamId, timestamp, dataItems.get(j));
+        LiveUpdates.publish(soId, streamId, timestamp, dataItems.get(j));
+      }
+    }
+    ArrayNode results = mapper.createArrayNode();
+    for (int i = 0; i < status.length; i++) {
+      ObjectNode result = results.addObject();
+      result.put("status", status[i]);
+      if (messages[i] != null)
+        result.put("message", messages[i]);
+    }
+    ObjectNode response = mapper.createObjectNode();
+    response.set("results", results);
+
+    return Response.status(Response.Status.ACCEPTED)
+             .entity(response.toString())
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
+  }
 
-    // Generate response
-    String response = Data.responseAllData(dataItems);
+  @Path("/{soId}/streams/{streamId}")
+  @GET
+  @Produces("application/json")
+  public Response getSOData(@Context HttpHeaders hh, @PathParam("soId") String soId,
+                    @PathParam("streamId") String streamId,
+                    @QueryParam("limit") Integer limit, @QueryParam("from") Long from,
+                    @QueryParam("to") Long to, @QueryParam("cursor") String cursor,
+                    @QueryParam("order") String order) {
 
-    if (response == null)
+    Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+
+    // Get the Service Object
+    SO so = SOCache.get(soId);
+    if (so == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
+
+    // check authorization -> same user and not public
+    checkAuthorization(aut, so);
+
+    // Without paging parameters the whole history is returned
+    if (limit == null && from == null && to == null && cursor == null && order == null) {
+      final String so_id = so.getId();
+      final String stream_id = streamId;
+      List<String> IDs = Backend.call(new Callable<List<String>>() {
+        @Override
+        public List<String> call() {
+          long start = System.nanoTime();
+          List<String> ids = SearchEngine.getAllUpdatesId(so_id, stream_id);
+          searchUpdatesIds.recordSince(start);
+          return ids;
+        }
+      });
+
+      // Generate response, the updates are loaded while they are written
+      DataStreamer streamer = DataStreamer.open(IDs);
+      if (streamer == null)
+        return Response.noContent()
+               .header("Server", "api.servIoTicy")
+               .header("Date", new Date(System.currentTimeMillis()))
+               .build();
+
+      return Response.ok(streamer)
+               .header("Server", "api.servIoTicy")
+               .header("Date", new Date(System.currentTimeMillis()))
+               .build();
+    }
+
+    int maxLimit = ApiConfig.getInt("history_max_limit", 1000);
+    if (limit == null || limit > maxLimit)
+      limit = maxLimit;
+    if (limit <= 0)
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "The limit must be positive");
+
+    // Newest first unless asked otherwise
+    if (order != null && !order.equals("asc") && !order.equals("desc"))
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "The order must be asc or desc");
+    boolean newestFirst = !"asc".equals(order);
+
+    // Get one page of the Service Object Data
+    UpdatesPage page = UpdatesPage.fetch(so.getId(), streamId, from, to, cursor, newestFirst, limit);
+
+    DataStreamer streamer = DataStreamer.open(page.getIds());
+    if (streamer == null)
       return Response.noContent()
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
 
-    return Response.ok(response)
-             .header("Server", "api.servIoTicy")
+    ResponseBuilder rb = Response.ok(streamer);
+    if (page.getNextCursor() != null) {
+      UriBuilder ub = uriInfo.getRequestUriBuilder()
+                        .replaceQueryParam("cursor", page.getNextCursor())
+                        .replaceQueryParam("limit", limit);
+      rb.header("Link", "<" + ub.build() + ">; rel=\"next\"");
+    }
+
+    return rb.header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
   }
@@ -368,16 +761,35 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
-
-    // Get the Service Object Data
-    long lastUpdate = SearchEngine.getLastUpdateTimeStamp(soId,streamId);
-    Data data = CouchBase.getData(soId,streamId,lastUpdate);
+    checkAuthorization(aut, so);
+
+    // Get the Service Object Data, from the latest updates seen by this node if possible
+    LastUpdateCache.LastUpdate last = LastUpdateCache.getLast(soId, streamId);
+    final long[] timestamp = { last == null ? -1 : last.getTimestamp() };
+    Data data = last == null ? null : last.getData();
+    if (data == null) {
+      final String so_id = soId;
+      final String stream_id = streamId;
+      data = Backend.call(new Callable<Data>() {
+        @Override
+        public Data call() {
+          long start = System.nanoTime();
+          long lastUpdate = SearchEngine.getLastUpdateTimeStamp(so_id, stream_id);
+          searchLastUpdate.recordSince(start);
+          start = System.nanoTime();
+          Data last = CouchBase.getData(so_id, stream_id, lastUpdate);
+          couchbaseGetData.recordSince(start);
+          LastUpdateCache.update(so_id, stream_id, lastUpdate, last);
+          timestamp[0] = lastUpdate;
+          return last;
+        }
+      });
+    }
 
 
     if (data == null)
@@ -386,13 +798,106 @@ public class Paths {
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
 
+    // Nothing to send if the client already has the latest update
+    EntityTag tag = null;
+    Date lastModified = null;
+    if (timestamp[0] >= 0) {
+      tag = new EntityTag("lastUpdate-" + Long.toString(timestamp[0], 36));
+      lastModified = SORevision.toDate(timestamp[0]);
+      Response notModified = notModified(tag, lastModified);
+      if (notModified != null)
+        return notModified;
+    }
+
     return Response.ok(data.responseLastUpdate())
+             .tag(tag)
+             .lastModified(lastModified)
+             .header("Cache-Control", "no-cache")
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
   }
 
 
+  @Path("/{soId}/streams/{streamId}/live")
+  @GET
+  @Produces("text/event-stream")
+  public Response getLiveUpdates(@Context HttpHeaders hh, @PathParam("soId") String soId,
+                    @PathParam("streamId") String streamId) {
+
+    Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+
+    // Get the Service Object
+    SO so = SOCache.get(soId);
+    if (so == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
+
+    // check authorization -> same user and not public, once for the whole connection
+    checkAuthorization(aut, so);
+
+    Watcher watcher = LiveUpdates.watch(this.servletRequest, soId, streamId);
+
+    return Response.ok(new EventStream(watcher))
+             .header("Cache-Control", "no-cache")
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  @Path("/{soId}/streams/{streamId}/live/poll")
+  @GET
+  @Produces("application/json")
+  public Response pollLiveUpdates(@Context HttpHeaders hh, @PathParam("soId") String soId,
+                    @PathParam("streamId") String streamId,
+                    @QueryParam("since") Long since, @QueryParam("timeout") Long timeout) {
+
+    Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+
+    // Get the Service Object
+    SO so = SOCache.get(soId);
+    if (so == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
+
+    // check authorization -> same user and not public
+    checkAuthorization(aut, so);
+
+    long maxTimeout = ApiConfig.getLong("live_poll_timeout", 30000);
+    if (timeout == null || timeout > maxTimeout || timeout < 0)
+      timeout = maxTimeout;
+
+    // Watch before looking at the latest update, so that none is missed in between
+    Watcher watcher = LiveUpdates.watch(this.servletRequest, soId, streamId);
+    try {
+      LastUpdateCache.LastUpdate last = since == null ? null : LastUpdateCache.getLast(soId, streamId);
+      if (last != null && last.getTimestamp() > since)
+        return Response.ok(last.getData().responseLastUpdate())
+                 .header("Server", "api.servIoTicy")
+                 .header("Date", new Date(System.currentTimeMillis()))
+                 .build();
+
+      long end = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      while (remaining > 0) {
+        Watcher.Update update = watcher.next(remaining);
+        if (update != null && (since == null || update.timestamp > since))
+          return Response.ok(update.json)
+                   .header("Server", "api.servIoTicy")
+                   .header("Date", new Date(System.currentTimeMillis()))
+                   .build();
+        remaining = end - System.currentTimeMillis();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      LiveUpdates.unwatch(watcher);
+    }
+
+    return Response.noContent()
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
   @Path("/{soId}/streams/{streamId}/search")
   @POST
   @Produces("application/json")
@@ -402,38 +907,219 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
 
-    SearchCriteria filter = SearchCriteria.buildFromJson(body);
+    final SearchCriteria filter = SearchCriteria.buildFromJson(body);
 
 //  // Get the Service Object Data
-    List<String> IDs = SearchEngine.searchUpdates(soId, streamId, filter);
-    List<Data> dataItems = new ArrayList<Data>();
-
-    for(String id : IDs)
-        dataItems.add(CouchBase.getData(id));
+    final String so_id = soId;
+    final String stream_id = streamId;
+    List<String> IDs = Backend.call(new Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        long start = System.nanoTime();
+        List<String> ids = SearchEngine.searchUpdates(so_id, stream_id, filter);
+        searchUpdatesIds.recordSince(start);
+        return ids;
+      }
+    });
 
-    if (dataItems == null || dataItems.size() == 0)
+    // Generate response, the updates are loaded while they are written
+    DataStreamer streamer = DataStreamer.open(IDs);
+    if (streamer == null)
         return Response.noContent()
                .header("Server", "api.servIoTicy")
                .header("Date", new Date(System.currentTimeMillis()))
                .build();
 
-      // Generate response
-      String response = Data.responseAllData(dataItems);
+    return Response.ok(streamer)
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  @Path("/bulk/lastUpdate")
+  @POST
+  @Produces("application/json")
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Response getBulkLastUpdate(@Context HttpHeaders hh, String body) {
 
+    JsonNode items = bulkItems(body);
 
-    if (response == null)
-      return Response.noContent()
+    // Authorize every Service Object once
+    Set<String> distinct = new LinkedHashSet<String>();
+    for (JsonNode item : items) {
+      String soId = item.path("soId").asText(null);
+      if (soId != null)
+        distinct.add(soId);
+    }
+    Map<String, Integer> soStatus = bulkAuthorization(distinct, new HashMap<String, SO>());
+
+    int[] positions = new int[items.size()];
+    List<String> soIds = new ArrayList<String>();
+    List<String> streamIds = new ArrayList<String>();
+    int[] status = new int[items.size()];
+    for (int i = 0; i < items.size(); i++) {
+      positions[i] = -1;
+      String soId = items.get(i).path("soId").asText(null);
+      String streamId = items.get(i).path("streamId").asText(null);
+      if (soId == null || streamId == null) {
+        status[i] = Response.Status.BAD_REQUEST.getStatusCode();
+        continue;
+      }
+      status[i] = soStatus.get(soId);
+      if (status[i] != Response.Status.OK.getStatusCode())
+        continue;
+      positions[i] = soIds.size();
+      soIds.add(soId);
+      streamIds.add(streamId);
+    }
+
+    // Latest updates with one multi-search and one bulk get
+    Data[] found = LastUpdates.get(soIds, streamIds);
+
+    ArrayNode results = mapper.createArrayNode();
+    for (int i = 0; i < items.size(); i++) {
+      ObjectNode result = results.addObject();
+      result.put("soId", items.get(i).path("soId").asText(null));
+      result.put("streamId", items.get(i).path("streamId").asText(null));
+      int j = positions[i];
+      if (j >= 0 && found[j] == null)
+        status[i] = Response.Status.NO_CONTENT.getStatusCode();
+      result.put("status", status[i]);
+      if (j >= 0 && found[j] != null)
+        result.set("lastUpdate", readJson(found[j].responseLastUpdate()));
+    }
+    ObjectNode response = mapper.createObjectNode();
+    response.set("results", results);
+
+    return Response.ok(response.toString())
+             .header("Server", "api.servIoTicy")
+             .header("Date", new Date(System.currentTimeMillis()))
+             .build();
+  }
+
+  @Path("/bulk/so")
+  @POST
+  @Produces("application/json")
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Response getBulkSO(@Context HttpHeaders hh, String body) {
+
+    JsonNode items = bulkItems(body);
+
+    // Either the id or an object with the soId
+    List<String> soIds = new ArrayList<String>(items.size());
+    for (JsonNode item : items)
+      soIds.add(item.isTextual() ? item.asText() : item.path("soId").asText(null));
+
+    // Get and authorize every Service Object once
+    Set<String> distinct = new LinkedHashSet<String>(soIds);
+    distinct.remove(null);
+    Map<String, SO> authorized = new HashMap<String, SO>();
+    Map<String, Integer> soStatus = bulkAuthorization(distinct, authorized);
+
+    ArrayNode results = mapper.createArrayNode();
+    for (String soId : soIds) {
+      ObjectNode result = results.addObject();
+      result.put("soId", soId);
+      int status = soId == null ? Response.Status.BAD_REQUEST.getStatusCode() : soStatus.get(soId);
+      result.put("status", status);
+      if (status == Response.Status.OK.getStatusCode())
+        result.set("so", readJson(authorized.get(soId).responseGetSO()));
+    }
+    ObjectNode response = mapper.createObjectNode();
+    response.set("results", results);
+
+    return Response.ok(response.toString())
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
+  }
+
+  // Array of the items of a bulk request
+  private static JsonNode bulkItems(String body) {
+    JsonNode items;
+    try {
+      items = mapper.readTree(body);
+    } catch (Exception e) {
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "Invalid JSON in the request");
+    }
+    if (items == null || !items.isArray())
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "The request must be an array of items");
+    if (items.size() > ApiConfig.getInt("bulk_max_items", 500))
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "Too many items in the request");
+    return items;
+  }
+
+  // Status of the access to each Service Object of a bulk request, all of them got with one bulk get
+  private Map<String, Integer> bulkAuthorization(Set<String> soIds, Map<String, SO> authorized) {
+    Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+    Map<String, SO> sos = SOCache.getAll(soIds);
+
+    Map<String, Integer> status = new HashMap<String, Integer>();
+    for (String soId : soIds) {
+      SO so = sos.get(soId);
+      if (so == null) {
+        status.put(soId, Response.Status.NOT_FOUND.getStatusCode());
+        continue;
+      }
+      try {
+        checkAuthorization(aut, so);
+        status.put(soId, Response.Status.OK.getStatusCode());
+        authorized.put(soId, so);
+      } catch (WebApplicationException e) {
+        status.put(soId, e.getResponse().getStatus());
+      }
+    }
+    return status;
+  }
+
+  private static JsonNode readJson(String json) {
+    try {
+      return mapper.readTree(json);
+    } catch (Exception e) {
+      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+          "Invalid document in the storage");
+    }
+  }
+
+  @Path("/{soId}/streams/{streamId}/aggregate")
+  @GET
+  @Produces("application/json")
+  public Response aggregateUpdates(@Context HttpHeaders hh, @PathParam("soId") String soId,
+                    @PathParam("streamId") String streamId,
+                    @QueryParam("interval") String interval, @QueryParam("from") Long from,
+                    @QueryParam("to") Long to, @QueryParam("channel") String channel,
+                    @QueryParam("function") String function) {
+
+    Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
+
+    // Get the Service Object
+    SO so = SOCache.get(soId);
+    if (so == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
+
+    // check authorization -> same user and not public
+    checkAuthorization(aut, so);
+
+    // By default the last day until now
+    long length = Aggregation.parseInterval(interval);
+    if (to == null)
+      to = Aggregation.now();
+    if (from == null)
+      from = to - Aggregation.parseInterval("1d");
+
+    // Aggregated by the search engine, only the buckets are returned
+    String response = Aggregation.aggregate(so.getId(), streamId, channel, Aggregation.Function.parse(function),
+        from, to, length);
 
     return Response.ok(response)
              .header("Server", "api.servIoTicy")
@@ -461,13 +1147,15 @@ public class Paths {
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
     // Create Subscription
     Subscription subs = new Subscription(so, userId, streamId, body);
 
     // Store in Couchbase
     CouchBase.setSubscription(subs);
+    SOCache.invalidate(soId);
+    SubscriptionIndex.putKey(subs.getId(), subs.getKey());
 
     // Construct the access subscription URI
     UriBuilder ub = uriInfo.getAbsolutePathBuilder();
@@ -489,12 +1177,12 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
     // Generate response
     String response = so.responseSubscriptions(streamId, true);
@@ -505,7 +1193,15 @@ public class Paths {
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
 
+    // The subscriptions are not part of the SO document, tag the response itself
+    EntityTag tag = new EntityTag("subscriptions-" + SORevision.digest(response));
+    Response notModified = notModified(tag, null);
+    if (notModified != null)
+      return notModified;
+
     return Response.ok(response)
+             .tag(tag)
+             .header("Cache-Control", "no-cache")
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
@@ -519,18 +1215,15 @@ public class Paths {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
-    // Get the Subscription Key
-    String subsKey = SearchEngine.getSubscriptionDocId(subsId);
-    if (subsKey == null)
-      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Subscription was not found.");
-
     // Get the Subscription
-    Subscription subs = CouchBase.getSubscription(subsKey);
+    Subscription subs = findSubscription(subsId);
 
     // check owner. Only the owner of the Subscription can delete it
     aut.checkOwner(subs);
 
     CouchBase.deleteSubscription(subs.getKey());
+    SOCache.invalidate(subs.getSO().getId());
+    SubscriptionIndex.invalidateKey(subsId);
 
     return Response.noContent()
     .header("Server", "api.servIoTicy")
@@ -547,16 +1240,11 @@ public class Paths {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
-    // Get the Subscription Key
-    String subsKey = SearchEngine.getSubscriptionDocId(subsId);
-    if (subsKey == null)
-      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Subscription was not found.");
-
     // Get the Subscription
-    Subscription subs = CouchBase.getSubscription(subsKey);
+    Subscription subs = findSubscription(subsId);
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(subs.getSO()); // TODO check owner, only delete if is the owner
+    checkAuthorization(aut, subs.getSO()); // TODO check owner, only delete if is the owner
 
 
     return Response.ok(subs.responseGetSO())
@@ -575,15 +1263,24 @@ public class Paths {
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
+    // Nothing to send if the client has this version
+    SORevision revision = SOCache.revision(so);
+    EntityTag tag = revision.getTag("actuations");
+    Response notModified = notModified(tag, revision.getLastModified());
+    if (notModified != null)
+      return notModified;
 
     return Response.ok(so.getActuationsString())
+             .tag(tag)
+             .lastModified(revision.getLastModified())
+             .header("Cache-Control", "no-cache")
              .header("Server", "api.servIoTicy")
              .header("Date", new Date(System.currentTimeMillis()))
              .build();
@@ -593,19 +1290,36 @@ public class Paths {
   @GET
   @Produces("application/json")
   public Response getActuationStatus(@Context HttpHeaders hh, @PathParam("soId") String soId,
-		  						@PathParam("actionId") String actionId) {
+		  						@PathParam("actionId") String actionId, @QueryParam("wait") Long wait) {
 
     Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
     // Get the Service Object
-    SO so = CouchBase.getSO(soId);
+    SO so = SOCache.get(soId);
     if (so == null)
       throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
     // check authorization -> same user and not public
-    aut.checkAuthorization(so);
+    checkAuthorization(aut, so);
 
-    Actuation act = CouchBase.getActuation(actionId);
+    // Watch before reading, so that a status set meanwhile is not missed
+    long maxWait = wait == null ? 0 : Math.min(wait, ApiConfig.getLong("actuation_max_wait", 30000));
+    long version = maxWait > 0 ? ActuationStatus.watch(actionId) : -1;
+    Actuation act;
+    try {
+      act = CouchBase.getActuation(actionId);
+
+      // Wait for the status if the actuation has none yet, at most the given milliseconds
+      if (version >= 0 && act != null && (act.getStatus() == null || act.getStatus().isEmpty())) {
+        ActuationStatus.await(actionId, version, maxWait);
+        act = CouchBase.getActuation(actionId);
+      }
+    } finally {
+      if (version >= 0)
+        ActuationStatus.unwatch(actionId);
+    }
+    if (act == null)
+      throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Actuation was not found.");
 
     return Response.ok(act.toString())
              .header("Server", "api.servIoTicy")
@@ -625,64 +1339,36 @@ public class Paths {
 	  Authorization aut = (Authorization) this.servletRequest.getAttribute("aut");
 
 	  // Get the Service Object
-	  SO so = CouchBase.getSO(soId);
+	  SO so = SOCache.get(soId);
 	  if (so == null)
 		  throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
 	  // check authorization -> same user and not public
-	  aut.checkAuthorization(so);
+	  checkAuthorization(aut, so);
 	  //TODO: check ownership?
 
+	  // Refuse it before it is stored if it cannot be sent
+	  ActuationDispatcher.checkCapacity();
+
 	  Actuation act = new Actuation(so, actuationName, body);
 
 	  // Generate opId
 	  String opId = UUID.randomUUID().toString().replaceAll("-", "");
 
-	  String response;
-	  // Queueing
-	  QueueClient sqc; //soid, streamid, body
-	  try {
-		  sqc = QueueClient.factory("defaultActions.xml");
-		  sqc.connect();
-		  System.out.println("Sending to kestrel... : "+
-				  "{\"soid\": \"" + soId +
-				  "\", \"id\": \"" + act.getId() +
-				  "\", \"name\": \"" + actuationName +
-				  "\", \"action\": " + act.toString()+ "}");
-
-		  boolean res = sqc.put(
-				  "{\"soid\": \"" + soId +
-				  "\", \"id\": \"" + act.getId() +
-				  "\", \"name\": \"" + actuationName +
-				  "\", \"action\": " + act.toString() + "}");
-
-		  if (res) {
-			  response = "{ \"message\" : \"Actuation submitted\", " +
+	  String response = "{ \"message\" : \"Actuation submitted\", " +
 			  "\"id\" : \""+act.getId()+
 			  "\"  }";
-		  } else {
-			  throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
-					  "Undefined error in SQueueClient ");
-		  }
 
-		  sqc.disconnect();
 
-	  } catch (QueueClientException e) {
-		  System.out.println("Found exception: "+e+"\nmessage: "+e.getMessage());
-		  throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
-				  "SQueueClientException " + e.getMessage());
-	  } catch (Exception e) {
-		  throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
-				  "Undefined error in SQueueClient");
-	  }
-
-
-	  // Store in Couchbase for status tracking
+	  // Store in Couchbase for status tracking, before the device can answer
 	  CouchBase.setActuation(act);
 
 	  // Set the opId
 	  CouchBase.setOpId(opId, Config.getOpIdExpiration());
 
+	  // Queueing, sent by the dispatcher threads
+	  ActuationDispatcher.submit(soId, act.getId(), actuationName, act.toString());
+
 
 	  // Construct the access subscription URI
 	  UriBuilder ub = uriInfo.getAbsolutePathBuilder();
@@ -712,12 +1398,12 @@ public class Paths {
 
 	  // Get the Service Object
 
-	  SO so = CouchBase.getSO(soId);
+	  SO so = SOCache.get(soId);
 	  if (so == null)
 		  throw new ServIoTWebApplicationException(Response.Status.NOT_FOUND, "The Service Object was not found.");
 
 	  // check authorization -> same user and not public
-	  aut.checkAuthorization(so);
+	  checkAuthorization(aut, so);
 	  //TODO: check ownership?
 
 	  // Store again in Couchbase for status tracking
@@ -727,6 +1413,7 @@ public class Paths {
 
 	  // Store again in Couchbase for status tracking
 	  CouchBase.setActuation(act);
+	  ActuationStatus.changed(act.getId());
 
 	  // Construct the access subscription URI
 	  UriBuilder ub = uriInfo.getAbsolutePathBuilder();
@@ -739,5 +1426,4 @@ public class Paths {
 	  .build();
   }
 
-
 }
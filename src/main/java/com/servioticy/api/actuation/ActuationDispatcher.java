@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.actuation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.commons.data.Actuation;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.queue.Envelopes;
+import com.servioticy.api.queue.QueueClients;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Sends the actuations to the actions queue from its own threads, through
+ * the pooled connections of QueueClients.actions(). The request only waits
+ * for the actuation to be accepted by the dispatcher; a put that fails is
+ * retried actuation_retries times before it is given up and logged. An
+ * actuation that is refused or given up gets a failed status, and the
+ * requests waiting for its status are woken.
+ *
+ * Every actuation is logged as one line of key=value pairs at INFO, and its
+ * payload at FINE, unless actuation_logging is false.
+ */
+public class ActuationDispatcher {
+
+  private static final Logger LOG = Logger.getLogger(ActuationDispatcher.class.getName());
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static ThreadPoolExecutor executor;
+
+  private static synchronized ThreadPoolExecutor executor() {
+    if (executor == null) {
+      int threads = Math.max(1, ApiConfig.getInt("actuation_threads", 2));
+      final AtomicInteger count = new AtomicInteger();
+      executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(Math.max(1, ApiConfig.getInt("actuation_queue", 10000))),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "actuation-dispatcher-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    return executor;
+  }
+
+  /**
+   * Refuse the request with a 503 if the dispatcher is full, before the
+   * actuation is stored.
+   */
+  public static void checkCapacity() {
+    if (executor().getQueue().remainingCapacity() == 0)
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "Too many actuations waiting to be sent, try again later");
+  }
+
+  /**
+   * Queue an actuation to be sent. When the dispatcher is full the stored
+   * actuation is marked as failed and the request is refused with a 503.
+   */
+  public static void submit(final String soId, final String id, final String name, final String action) {
+    final Object message = Envelopes.codec().encodeActuation(soId, id, name, action);
+    log(Level.INFO, "event=submitted so=" + soId + " id=" + id + " name=" + name, null);
+    log(Level.FINE, "event=payload id=" + id + " action=" + action, null);
+
+    try {
+      executor().execute(new Runnable() {
+        @Override
+        public void run() {
+          send(soId, id, name, message);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      failed(soId, id, name, "The actuation could not be queued");
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "Too many actuations waiting to be sent, try again later");
+    }
+  }
+
+  private static void send(String soId, String id, String name, Object message) {
+    int retries = Math.max(0, ApiConfig.getInt("actuation_retries", 3));
+    long backoff = ApiConfig.getLong("actuation_retry_backoff", 200);
+    long start = System.nanoTime();
+    for (int attempt = 0; attempt <= retries; attempt++) {
+      try {
+        if (QueueClients.actions().put(message)) {
+          log(Level.INFO, "event=queued so=" + soId + " id=" + id + " name=" + name +
+              " attempts=" + (attempt + 1) + " micros=" + (System.nanoTime() - start) / 1000, null);
+          return;
+        }
+      } catch (Exception e) {
+        log(Level.FINE, "event=put_failed id=" + id + " attempt=" + (attempt + 1), e);
+      }
+      // No wait after the last attempt
+      if (attempt == retries)
+        break;
+      try {
+        Thread.sleep(backoff << attempt);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    // Not switched off, the actuation is lost
+    LOG.warning("event=dropped so=" + soId + " id=" + id + " name=" + name + " attempts=" + (retries + 1));
+    failed(soId, id, name, "The actuation could not be sent to the device");
+  }
+
+  // Record that the actuation was not sent and wake the requests waiting for its status
+  private static void failed(String soId, String id, String name, String message) {
+    try {
+      Actuation act = CouchBase.getActuation(id);
+      if (act != null) {
+        ObjectNode status = mapper.createObjectNode();
+        status.put("status", "failed");
+        status.put("message", message);
+        act.updateStatus(status.toString());
+        CouchBase.setActuation(act);
+      }
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "event=status_failed so=" + soId + " id=" + id + " name=" + name, e);
+    }
+    ActuationStatus.changed(id);
+  }
+
+  private static void log(Level level, String message, Throwable e) {
+    if (LOG.isLoggable(level) && ApiConfig.getBoolean("actuation_logging", true))
+      LOG.log(level, message, e);
+  }
+
+  /** Number of actuations waiting to be sent. */
+  public static int getPending() {
+    ThreadPoolExecutor e = executor;
+    return e == null ? 0 : e.getQueue().size();
+  }
+
+  /** Send the pending actuations, waiting at most the given milliseconds. */
+  public static void shutdown(long timeout) {
+    ThreadPoolExecutor e;
+    synchronized (ActuationDispatcher.class) {
+      e = executor;
+      executor = null;
+    }
+    if (e == null)
+      return;
+    e.shutdown();
+    try {
+      e.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    e.shutdownNow();
+  }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.actuation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Lets the requests for the status of an actuation wait until it changes.
+ * A waiter calls watch, which takes the current version of the actuation,
+ * then reads its status and only waits with await if it has none yet, so a
+ * change made between the read and the wait is not missed. Every watch is
+ * ended with unwatch.
+ *
+ * A waiting request holds a container thread, so at most
+ * actuation_max_waiters requests wait at a time and the rest are answered
+ * with the current status straight away.
+ *
+ * Only the changes received by this node wake the waiters; a change made
+ * through another node is seen when the wait times out.
+ */
+public class ActuationStatus {
+
+  private static class Changes {
+    volatile long version;
+    int waiters;
+  }
+
+  private static final Map<String, Changes> changes = new HashMap<String, Changes>();
+  private static int waiting = 0;
+
+  /**
+   * Start watching the changes of an actuation. Every call that does not
+   * return -1 must be followed by a call to unwatch.
+   *
+   * @return the current version, or -1 if too many requests are waiting
+   */
+  public static long watch(String actuationId) {
+    synchronized (changes) {
+      if (waiting >= ApiConfig.getInt("actuation_max_waiters", 32))
+        return -1;
+      Changes c = changes.get(actuationId);
+      if (c == null) {
+        c = new Changes();
+        changes.put(actuationId, c);
+      }
+      c.waiters++;
+      waiting++;
+      return c.version;
+    }
+  }
+
+  /**
+   * Wait until the actuation changes after the given version. The
+   * actuation must be watched.
+   *
+   * @return true if it changed, false if the timeout expired
+   */
+  public static boolean await(String actuationId, long version, long timeout) {
+    Changes c;
+    synchronized (changes) {
+      c = changes.get(actuationId);
+    }
+    try {
+      long deadline = System.currentTimeMillis() + timeout;
+      synchronized (c) {
+        while (c.version == version) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            return false;
+          c.wait(wait);
+        }
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Stop watching the changes of an actuation. */
+  public static void unwatch(String actuationId) {
+    synchronized (changes) {
+      Changes c = changes.get(actuationId);
+      if (c == null)
+        return;
+      waiting--;
+      if (--c.waiters == 0)
+        changes.remove(actuationId);
+    }
+  }
+
+  /** Wake the requests waiting for the actuation. */
+  public static void changed(String actuationId) {
+    Changes c;
+    synchronized (changes) {
+      c = changes.get(actuationId);
+    }
+    if (c == null)
+      return;
+    synchronized (c) {
+      c.version++;
+      c.notifyAll();
+    }
+  }
+
+  /** Number of requests waiting for a change. */
+  public static int getWaiting() {
+    synchronized (changes) {
+      return waiting;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.admission;
+
+import com.servioticy.api.cache.TtlCache;
+import com.servioticy.api.data.WriteBehind;
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.Backend;
+
+/**
+ * Admission control of the sensor updates.
+ *
+ * Each user and each Service Object has a token bucket, refilled at
+ * rate_user and rate_so updates per second up to burst_user and burst_so,
+ * and a request that finds one of its buckets empty is refused with a 429.
+ * The bucket of the user is charged before anything else is done for the
+ * request, the one of the Service Object only once the user is authorized
+ * on it, so that nobody can use up the limit of a Service Object of others.
+ * Before that, the whole ingestion is refused with a 503 while the backend
+ * executor or the write-behind stage are filled over backpressure_threshold.
+ * A saturated updates queue is not a reason to refuse them, SpooledQueue
+ * waits for a client or keeps the updates in its spool.
+ *
+ * The limits are taken from config.properties again when the file is
+ * reloaded. The buckets are kept and refilled with the new limits from then
+ * on; the buckets of the users or of the Service Objects only start over
+ * when their number or the time they take to refill changes.
+ */
+public class AdmissionControl {
+
+  private static volatile TtlCache<String, TokenBucket> users;
+  private static volatile TtlCache<String, TokenBucket> sos;
+  private static volatile int version = -1;
+  private static int size;
+  private static long ttlUser, ttlSO;
+
+  private static volatile double rateUser, burstUser, rateSO, burstSO;
+  private static volatile double threshold;
+  private static volatile long retry;
+
+  /**
+   * Admit count sensor updates of a user, before the request is authorized.
+   *
+   * @throws AdmissionException if the server is saturated or the user is
+   *         over its rate limit
+   */
+  public static void admitUser(String userId, int count) {
+    configure();
+    checkBackpressure();
+    if (userId != null)
+      acquire(users, userId, rateUser, burstUser, count, "The user");
+  }
+
+  /**
+   * Admit count sensor updates to a Service Object, once the user is
+   * authorized on it.
+   *
+   * @throws AdmissionException if the Service Object is over its rate limit
+   */
+  public static void admitSO(String soId, int count) {
+    configure();
+    acquire(sos, soId, rateSO, burstSO, count, "The Service Object");
+  }
+
+  /** Refuse the request with a 503 if the backend or the write-behind stage is saturated. */
+  public static void checkBackpressure() {
+    configure();
+    if (threshold <= 0)
+      return;
+
+    if (Backend.getQueueUsage() >= threshold)
+      throw new AdmissionException(503, retry, "The backend is saturated, try again later");
+    if (WriteBehind.getQueueUsage() >= threshold)
+      throw new AdmissionException(503, retry, "The storage is saturated, try again later");
+  }
+
+  private static void acquire(TtlCache<String, TokenBucket> buckets, String key, double rate,
+                              double burst, int count, String who) {
+    // 0 disables the limit
+    if (rate <= 0)
+      return;
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      synchronized (buckets) {
+        bucket = buckets.get(key);
+        if (bucket == null) {
+          bucket = new TokenBucket(burst);
+          buckets.put(key, bucket);
+        }
+      }
+    }
+    long wait = bucket.acquire(rate, burst, count);
+    // Keep it while in use, an idle bucket is full again when it expires
+    buckets.put(key, bucket);
+    if (wait > 0)
+      throw new AdmissionException(AdmissionException.TOO_MANY_REQUESTS, wait,
+          who + " is over its rate limit of " + rate + " updates per second");
+  }
+
+  // Read the limits again when the configuration has been reloaded
+  private static void configure() {
+    int current = ApiConfig.getVersion();
+    if (current == version)
+      return;
+    synchronized (AdmissionControl.class) {
+      if (current == version)
+        return;
+      rateUser = ApiConfig.getDouble("rate_user", 0);
+      burstUser = Math.max(1, ApiConfig.getDouble("burst_user", Math.max(1, rateUser)));
+      rateSO = ApiConfig.getDouble("rate_so", 0);
+      burstSO = Math.max(1, ApiConfig.getDouble("burst_so", Math.max(1, rateSO)));
+      threshold = ApiConfig.getDouble("backpressure_threshold", 0.9);
+      retry = ApiConfig.getLong("backpressure_retry", 1000);
+
+      // Idle buckets are full again after burst / rate seconds, expire them then.
+      // The rest of the buckets are kept, they take the rate and burst on every acquire
+      int newSize = ApiConfig.getInt("admission_buckets", 100000);
+      long newTtlUser = ttl(rateUser, burstUser);
+      long newTtlSO = ttl(rateSO, burstSO);
+      if (users == null || newSize != size || newTtlUser != ttlUser)
+        users = new TtlCache<String, TokenBucket>(newSize, newTtlUser);
+      if (sos == null || newSize != size || newTtlSO != ttlSO)
+        sos = new TtlCache<String, TokenBucket>(newSize, newTtlSO);
+      size = newSize;
+      ttlUser = newTtlUser;
+      ttlSO = newTtlSO;
+      version = current;
+    }
+  }
+
+  private static long ttl(double rate, double burst) {
+    if (rate <= 0)
+      return 60000;
+    return Math.max(1000, (long) (burst / rate * 1000));
+  }
+}
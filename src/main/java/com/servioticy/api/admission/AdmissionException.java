@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.admission;
+
+import java.util.Date;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Request refused by the admission control, with a Retry-After header telling
+ * the client when to try again. The status is 429 for a client over its rate
+ * limit and 503 when the server is shedding load.
+ */
+public class AdmissionException extends WebApplicationException {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final int TOO_MANY_REQUESTS = 429;
+
+  public AdmissionException(int status, long retryAfterMillis, String message) {
+    super(Response.status(status)
+            .type(MediaType.APPLICATION_JSON)
+            .entity("{ \"code\" : " + status + ", \"message\" : \"" + message + "\" }")
+            .header("Retry-After", Math.max(1, (retryAfterMillis + 999) / 1000))
+            .header("Server", "api.servIoTicy")
+            .header("Date", new Date(System.currentTimeMillis()))
+            .build());
+  }
+}
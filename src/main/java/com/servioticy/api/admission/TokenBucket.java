@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.admission;
+
+/**
+ * Token bucket refilled at a constant rate up to its burst size. The rate
+ * and burst are given on each call so that a change of configuration is
+ * applied to the existing buckets.
+ */
+public class TokenBucket {
+
+  private double tokens;
+  private long refilled = System.nanoTime();
+
+  /** A new bucket starts full. */
+  public TokenBucket(double burst) {
+    this.tokens = burst;
+  }
+
+  /**
+   * Take tokens from the bucket. A request for more tokens than the burst is
+   * let through when the bucket is full and leaves it in debt.
+   *
+   * @return 0 if the tokens were taken, otherwise the milliseconds until
+   *         there will be enough of them
+   */
+  public synchronized long acquire(double rate, double burst, int count) {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+    refilled = now;
+
+    double needed = Math.min(count, burst);
+    if (tokens >= needed) {
+      tokens -= count;
+      return 0;
+    }
+    return Math.max(1, (long) Math.ceil((needed - tokens) / rate * 1000));
+  }
+
+  /** Tokens currently in the bucket, negative when in debt. */
+  public synchronized double getTokens() {
+    return tokens;
+  }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.auth;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.servioticy.api.cache.TtlCache;
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.utils.Authorization;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Caches of the authorization work done on each request: the identity that
+ * an API token resolves to, which otherwise is looked up in the users
+ * database by the commons filter, and the positive checkAuthorization
+ * decisions of a user on a Service Object.
+ *
+ * Only successful results are cached. The decisions on a Service Object are
+ * dropped with the Service Object in SOCache.invalidateLocal, so they follow
+ * the invalidations of putSO and deleteSO to the other API nodes through the
+ * SOCache listeners. Everything expires after its TTL, which bounds how long
+ * a revoked token or a change that no invalidation reaches is ignored.
+ *
+ * A cached identity keeps the Authorization built by the commons filter for
+ * the token and it is shared by the requests with that token. It only holds
+ * the identity resolved from the token, which its checks read and never
+ * modify, so the filter sets the same userId and aut attributes that the
+ * commons filter would set for the token.
+ */
+public class AuthorizationCache {
+
+  /** Identity of the owner of an API token. */
+  public static class Identity {
+    private final String userId;
+    private final Authorization aut;
+
+    public Identity(String userId, Authorization aut) {
+      this.userId = userId;
+      this.aut = aut;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Authorization getAuthorization() {
+      return aut;
+    }
+  }
+
+  private static final TtlCache<String, Identity> tokens = new TtlCache<String, Identity>(
+      ApiConfig.getInt("auth_token_cache_size", 10000), ApiConfig.getLong("auth_token_cache_ttl", 60000));
+  // soId -> users allowed on it
+  private static final TtlCache<String, Set<String>> decisions = new TtlCache<String, Set<String>>(
+      ApiConfig.getInt("auth_decision_cache_size", 100000), ApiConfig.getLong("auth_decision_cache_ttl", 30000));
+
+  /** @return the identity of a token, or null if it is not cached */
+  public static Identity getIdentity(String token) {
+    return tokens.get(token);
+  }
+
+  public static void putIdentity(String token, Identity identity) {
+    tokens.put(token, identity);
+  }
+
+  public static void invalidateToken(String token) {
+    tokens.invalidate(token);
+  }
+
+  /**
+   * Check the authorization of a user on a Service Object, unless the same
+   * check already succeeded recently.
+   */
+  public static void checkAuthorization(String userId, Authorization aut, SO so) {
+    if (userId == null) {
+      aut.checkAuthorization(so);
+      return;
+    }
+
+    String soId = so.getId();
+    Set<String> allowed = decisions.get(soId);
+    if (allowed != null && allowed.contains(userId))
+      return;
+
+    // Throws if not authorized
+    aut.checkAuthorization(so);
+
+    if (allowed == null) {
+      synchronized (decisions) {
+        allowed = decisions.get(soId);
+        if (allowed == null) {
+          allowed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+          decisions.put(soId, allowed);
+        }
+      }
+    }
+    allowed.add(userId);
+  }
+
+  /** Drop the decisions on a Service Object. */
+  public static void invalidate(String soId) {
+    decisions.invalidate(soId);
+  }
+
+  public static TtlCache<String, Identity> getTokenCache() {
+    return tokens;
+  }
+
+  public static TtlCache<String, Set<String>> getDecisionCache() {
+    return decisions;
+  }
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.auth;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+
+import com.servioticy.api.commons.utils.Authorization;
+import com.servioticy.api.commons.utils.AuthorizationRequestFilter;
+import com.sun.jersey.spi.container.ContainerRequest;
+
+/**
+ * AuthorizationRequestFilter with a cache of the identities of the API
+ * tokens. A known token sets the userId and aut attributes straight away,
+ * with the Authorization cached for it (see AuthorizationCache); otherwise
+ * the commons filter resolves it and its result is cached.
+ */
+public class CachingAuthorizationRequestFilter extends AuthorizationRequestFilter {
+
+  @Context
+  private HttpServletRequest servletRequest;
+
+  @Override
+  public ContainerRequest filter(ContainerRequest request) {
+    String token = request.getHeaderValue(HttpHeaders.AUTHORIZATION);
+    if (token == null)
+      return super.filter(request);
+
+    AuthorizationCache.Identity identity = AuthorizationCache.getIdentity(token);
+    if (identity != null) {
+      servletRequest.setAttribute("userId", identity.getUserId());
+      servletRequest.setAttribute("aut", identity.getAuthorization());
+      return request;
+    }
+
+    // Resolve it, an invalid token throws and is not cached
+    ContainerRequest res = super.filter(request);
+    String userId = (String) servletRequest.getAttribute("userId");
+    Authorization aut = (Authorization) servletRequest.getAttribute("aut");
+    if (userId != null && aut != null)
+      AuthorizationCache.putIdentity(token, new AuthorizationCache.Identity(userId, aut));
+    return res;
+  }
+}
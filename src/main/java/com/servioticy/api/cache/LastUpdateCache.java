@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Latest update of each stream, kept when the updates are written so that
+ * lastUpdate can be answered without asking Elasticsearch and Couchbase.
+ * The streams are grouped by Service Object, so that deleting a Service
+ * Object drops all its streams at once.
+ */
+public class LastUpdateCache {
+
+  /** Latest update of a stream, with its timestamp. */
+  public static class LastUpdate {
+    private final long timestamp;
+    private final Data data;
+
+    LastUpdate(long timestamp, Data data) {
+      this.timestamp = timestamp;
+      this.data = data;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public Data getData() {
+      return data;
+    }
+  }
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final TtlCache<String, ConcurrentHashMap<String, LastUpdate>> cache =
+      new TtlCache<String, ConcurrentHashMap<String, LastUpdate>>(
+          ApiConfig.getInt("last_update_cache_size", 10000),
+          ApiConfig.getLong("last_update_cache_ttl", 5000));
+
+  /** @return the latest update of the stream and its timestamp, or null if it is not cached */
+  public static LastUpdate getLast(String soId, String streamId) {
+    ConcurrentHashMap<String, LastUpdate> streams = cache.get(soId);
+    return streams == null ? null : streams.get(streamId);
+  }
+
+  /** @return the latest update of the stream, or null if it is not cached */
+  public static Data get(String soId, String streamId) {
+    LastUpdate last = getLast(soId, streamId);
+    return last == null ? null : last.data;
+  }
+
+  /** @return the lastUpdate field of a sensor update, or -1 if it has none */
+  public static long timestampOf(String su) {
+    try {
+      return mapper.readTree(su).path("lastUpdate").asLong(-1);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /** Record an update, unless a newer one is already cached. */
+  public static void update(String soId, String streamId, long timestamp, Data data) {
+    if (timestamp < 0 || data == null)
+      return;
+
+    ConcurrentHashMap<String, LastUpdate> streams = cache.get(soId);
+    if (streams == null) {
+      streams = new ConcurrentHashMap<String, LastUpdate>();
+      ConcurrentHashMap<String, LastUpdate> current = cache.putIfAbsent(soId, streams);
+      if (current != null)
+        streams = current;
+    }
+
+    LastUpdate update = new LastUpdate(timestamp, data);
+    while (true) {
+      LastUpdate current = streams.putIfAbsent(streamId, update);
+      if (current == null || current.timestamp > timestamp)
+        return;
+      if (streams.replace(streamId, current, update))
+        return;
+    }
+  }
+
+  public static void invalidate(String soId, String streamId) {
+    ConcurrentHashMap<String, LastUpdate> streams = cache.get(soId);
+    if (streams != null)
+      streams.remove(streamId);
+  }
+
+  public static void invalidate(String soId) {
+    cache.invalidate(soId);
+  }
+
+  public static TtlCache<?, ?> getCache() {
+    return cache;
+  }
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.servioticy.api.auth.AuthorizationCache;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.data.BulkCouchBase;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Cache of Service Objects in front of CouchBase.getSO.
+ *
+ * The cached SO instances are shared between requests, so they must only be
+ * read. Paths that modify a Service Object load it with CouchBase.getSO and
+ * invalidate the entry afterwards.
+ *
+ * Along with each cached SO it keeps its SORevision, computed the first time
+ * a conditional request needs it.
+ *
+ * Every invalidation bumps the generation of the Service Object, and a load
+ * only keeps what it read if the generation did not change meanwhile, so a
+ * load that started before an invalidation does not cache the old version.
+ */
+public class SOCache {
+
+  /**
+   * Notified of every local invalidation, so that it can be propagated to the
+   * other API nodes. The other nodes apply it with invalidateLocal.
+   */
+  public interface InvalidationListener {
+    void invalidated(String soId);
+  }
+
+  private static volatile TtlCache<String, SO> cache = new TtlCache<String, SO>(
+      ApiConfig.getInt("so_cache_size", 10000), ApiConfig.getLong("so_cache_ttl", 30000));
+  private static volatile TtlCache<String, SORevision> revisions = new TtlCache<String, SORevision>(
+      ApiConfig.getInt("so_cache_size", 10000), ApiConfig.getLong("so_cache_ttl", 30000));
+  private static final LatencyRecorder loads = Metrics.backend("couchbase.getSO");
+  // Service Objects being deleted by a job of this node
+  private static final Set<String> deleting =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static final CopyOnWriteArrayList<InvalidationListener> listeners =
+      new CopyOnWriteArrayList<InvalidationListener>();
+  // Generations of the Service Objects, striped by id
+  private static final AtomicLongArray generations = new AtomicLongArray(1024);
+
+  /** @return the Service Object, or null if it does not exist or is being deleted */
+  public static SO get(String soId) {
+    if (deleting.contains(soId))
+      return null;
+    SO so = cache.get(soId);
+    if (so != null)
+      return so;
+
+    long generation = generation(soId);
+    long start = System.nanoTime();
+    so = CouchBase.getSO(soId);
+    loads.recordSince(start);
+    if (so != null)
+      cacheLoaded(soId, so, generation);
+    return so;
+  }
+
+  /**
+   * Get several Service Objects, loading the ones that are not cached with a
+   * parallel bulk get.
+   *
+   * @return the Service Objects that exist, by id
+   * @throws ServIoTWebApplicationException 503 if some of them could not be loaded
+   */
+  public static Map<String, SO> getAll(Collection<String> soIds) {
+    final Map<String, SO> found = new ConcurrentHashMap<String, SO>();
+    List<String> misses = new ArrayList<String>();
+    final Map<String, Long> loading = new ConcurrentHashMap<String, Long>();
+    for (String soId : soIds) {
+      if (deleting.contains(soId))
+        continue;
+      SO so = cache.get(soId);
+      if (so != null) {
+        found.put(soId, so);
+      } else {
+        misses.add(soId);
+        loading.put(soId, generation(soId));
+      }
+    }
+
+    boolean[] ok = BulkCouchBase.apply(misses, loads, new BulkCouchBase.Operation<String>() {
+      @Override
+      public void apply(String soId) {
+        SO so = CouchBase.getSO(soId);
+        if (so != null) {
+          cacheLoaded(soId, so, loading.get(soId));
+          found.put(soId, so);
+        }
+      }
+    });
+    BulkCouchBase.checkAll(ok, "Unable to read some of the Service Objects, try again later");
+    return found;
+  }
+
+  private static long generation(String soId) {
+    return generations.get(stripe(soId));
+  }
+
+  private static int stripe(String soId) {
+    return (soId.hashCode() & 0x7fffffff) % generations.length();
+  }
+
+  // Cache a loaded Service Object unless it was invalidated since the load started.
+  // Checked again after the put, an invalidation in between removes it
+  private static void cacheLoaded(String soId, SO so, long generation) {
+    if (generation(soId) != generation)
+      return;
+    cache.put(soId, so);
+    if (generation(soId) != generation)
+      cache.invalidate(soId);
+  }
+
+  /** @return the validators of the given version of a Service Object */
+  public static SORevision revision(SO so) {
+    String soId = so.getId();
+    SORevision revision = revisions.get(soId);
+    if (revision != null && revision.so == so)
+      return revision;
+    // Computed for a new version, it replaces the one of the previous instance
+    revision = new SORevision(so);
+    revisions.put(soId, revision);
+    return revision;
+  }
+
+  /**
+   * Hide a Service Object from this node while a job deletes it, so that it
+   * does not get more updates. The other nodes only stop serving it when its
+   * document is deleted, the job lists its updates again before that.
+   */
+  public static void markDeleting(String soId) {
+    deleting.add(soId);
+    invalidate(soId);
+  }
+
+  /** Show the Service Object again, once deleted or if its deletion failed. */
+  public static void unmarkDeleting(String soId) {
+    deleting.remove(soId);
+  }
+
+  /** Drop the Service Object in this node and in the rest of the nodes. */
+  public static void invalidate(String soId) {
+    invalidateLocal(soId);
+    for (InvalidationListener listener : listeners)
+      listener.invalidated(soId);
+  }
+
+  /** Drop the Service Object, and the authorization decisions on it, only in this node. */
+  public static void invalidateLocal(String soId) {
+    generations.incrementAndGet(stripe(soId));
+    cache.invalidate(soId);
+    revisions.invalidate(soId);
+    AuthorizationCache.invalidate(soId);
+  }
+
+  public static void addInvalidationListener(InvalidationListener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeInvalidationListener(InvalidationListener listener) {
+    listeners.remove(listener);
+  }
+
+  public static void clear() {
+    for (int i = 0; i < generations.length(); i++)
+      generations.incrementAndGet(i);
+    cache.clear();
+    revisions.clear();
+  }
+
+  public static TtlCache<String, SO> getCache() {
+    return cache;
+  }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.cache;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.servioticy.api.commons.data.SO;
+
+/**
+ * Validators of a version of a Service Object document, for the conditional
+ * GETs of the SO and of the parts of it (streams, actuations). The ETag is a
+ * digest of the document, so it is the same in every API node, and the
+ * Last-Modified date is its updatedAt field when it has one.
+ *
+ * Computing it serializes the document, so SOCache keeps it along with the
+ * cached SO and a request that is answered with a 304 never serializes it.
+ */
+public class SORevision {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  final SO so;
+  private final String digest;
+  private final Date lastModified;
+
+  SORevision(SO so) {
+    this.so = so;
+    String document = so.responseGetSO();
+    this.digest = digest(document);
+    Date modified = null;
+    try {
+      JsonNode root = mapper.readTree(document);
+      long updatedAt = root.path("updatedAt").asLong(root.path("createdAt").asLong(-1));
+      if (updatedAt > 0)
+        modified = toDate(updatedAt);
+    } catch (Exception e) {
+      // No date, only the ETag is used
+    }
+    this.lastModified = modified;
+  }
+
+  /** Strong ETag of a representation of this version, e.g. "so", "streams" or "actuations". */
+  public EntityTag getTag(String representation) {
+    return new EntityTag(representation + "-" + digest);
+  }
+
+  /** @return the date of this version, or null if the document has none */
+  public Date getLastModified() {
+    return lastModified;
+  }
+
+  /** Date of a timestamp of the documents, which can be in seconds or milliseconds. */
+  public static Date toDate(long timestamp) {
+    // Anything before 1973 in milliseconds is taken as seconds
+    if (timestamp < 100000000000L)
+      timestamp *= 1000;
+    return new Date(timestamp);
+  }
+
+  /** Hex SHA-1 of a document. */
+  public static String digest(String document) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(document.getBytes(UTF8));
+      char[] hex = new char[hash.length * 2];
+      for (int i = 0; i < hash.length; i++) {
+        hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+        hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+      }
+      return new String(hex);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not available", e);
+    }
+  }
+}
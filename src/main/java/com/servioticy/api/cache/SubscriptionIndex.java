@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.cache;
+
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Cache of the document key of each subscription id, in front of the
+ * Elasticsearch lookup of findSubscription.
+ *
+ * The subscriptions created through this node are added as soon as they are
+ * stored, so they can be found before Elasticsearch has indexed them. A key
+ * that points to a subscription deleted through another node is found stale
+ * when its document is missing and is dropped then.
+ *
+ * The subscriptions of a Service Object are not cached: the listings and the
+ * deletion of a Service Object search them in Elasticsearch.
+ */
+public class SubscriptionIndex {
+
+  private static final TtlCache<String, String> keys = new TtlCache<String, String>(
+      ApiConfig.getInt("subscription_cache_size", 100000), ApiConfig.getLong("subscription_cache_ttl", 3600000));
+
+  /** @return the document key of a subscription, or null if it is not cached */
+  public static String getKey(String subsId) {
+    return keys.get(subsId);
+  }
+
+  /** Remember the document key of a subscription, stored or found in the search engine. */
+  public static void putKey(String subsId, String key) {
+    if (key != null)
+      keys.put(subsId, key);
+  }
+
+  /** Drop the document key of a subscription that no longer exists. */
+  public static void invalidateKey(String subsId) {
+    keys.invalidate(subsId);
+  }
+
+  public static TtlCache<String, String> getCache() {
+    return keys;
+  }
+}
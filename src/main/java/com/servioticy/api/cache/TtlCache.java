@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache with a time to live per entry. When the cache is
+ * full the least recently used entry is evicted.
+ */
+public class TtlCache<K, V> {
+
+  private static class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final int maxSize;
+  private final long ttl;
+  private final LinkedHashMap<K, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize maximum number of entries, 0 disables the cache
+   * @param ttl     milliseconds an entry is valid after being put
+   */
+  public TtlCache(int maxSize, long ttl) {
+    this.maxSize = Math.max(0, maxSize);
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if (size() > TtlCache.this.maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** @return the cached value, or null if it is missing or expired */
+  public V get(K key) {
+    if (maxSize == 0) {
+      misses.incrementAndGet();
+      return null;
+    }
+    synchronized (entries) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null && entry.expires > System.currentTimeMillis()) {
+        hits.incrementAndGet();
+        return entry.value;
+      }
+      if (entry != null)
+        entries.remove(key);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(K key, V value) {
+    if (maxSize == 0 || value == null)
+      return;
+    synchronized (entries) {
+      entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Put the value unless the key already has one that has not expired.
+   *
+   * @return the value already cached, or null if the given one was put
+   */
+  public V putIfAbsent(K key, V value) {
+    if (maxSize == 0 || value == null)
+      return null;
+    synchronized (entries) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null && entry.expires > System.currentTimeMillis())
+        return entry.value;
+      entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+      return null;
+    }
+  }
+
+  public void invalidate(K key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /** Remove the expired entries. */
+  public void purge() {
+    long now = System.currentTimeMillis();
+    synchronized (entries) {
+      Iterator<Entry<V>> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().expires <= now)
+          it.remove();
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+}
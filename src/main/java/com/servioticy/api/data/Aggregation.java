@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.Backend;
+
+/**
+ * Aggregation of the updates of a stream in time buckets, computed by
+ * Elasticsearch with a histogram over the update timestamps and one metric
+ * of a channel per bucket. Only the buckets are transferred, no update is
+ * loaded from Couchbase.
+ *
+ * The query goes to the index of the updates through UpdatesIndex, and the
+ * name of the field of the channels is set with aggregate_channel_field.
+ */
+public class Aggregation {
+
+  public enum Function {
+    MIN, MAX, AVG, COUNT, LAST;
+
+    public static Function parse(String value) {
+      if (value == null)
+        return AVG;
+      try {
+        return valueOf(value.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+            "Unknown function " + value + ", expected min, max, avg, count or last");
+      }
+    }
+  }
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final Pattern INTERVAL = Pattern.compile("(\\d+)(ms|s|m|h|d|w)");
+  private static final LatencyRecorder searchAggregate = Metrics.backend("search.aggregate");
+
+  /** Length of an interval such as 30s, 5m, 1h or 1d, in the unit of the timestamps. */
+  public static long parseInterval(String interval) {
+    Matcher m = interval == null ? null : INTERVAL.matcher(interval.trim());
+    if (m == null || !m.matches())
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "Invalid interval, expected a number and one of ms, s, m, h, d or w");
+    long millis = Long.parseLong(m.group(1));
+    String unit = m.group(2);
+    if (unit.equals("s"))
+      millis *= 1000L;
+    else if (unit.equals("m"))
+      millis *= 60 * 1000L;
+    else if (unit.equals("h"))
+      millis *= 60 * 60 * 1000L;
+    else if (unit.equals("d"))
+      millis *= 24 * 60 * 60 * 1000L;
+    else if (unit.equals("w"))
+      millis *= 7 * 24 * 60 * 60 * 1000L;
+
+    long length = secondsTimestamps() ? millis / 1000 : millis;
+    if (length <= 0)
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "The interval is shorter than the resolution of the timestamps");
+    return length;
+  }
+
+  /** Current time in the unit of the timestamps. */
+  public static long now() {
+    long now = System.currentTimeMillis();
+    return secondsTimestamps() ? now / 1000 : now;
+  }
+
+  private static boolean secondsTimestamps() {
+    return ApiConfig.getString("aggregate_time_unit", "ms").equals("s");
+  }
+
+  /**
+   * @param channel  channel to aggregate, may be null for COUNT
+   * @param interval length of the buckets, in the unit of the timestamps
+   * @return the buckets, as {"interval": ..., "function": ..., "buckets": [{"from": ..., "count": ..., "value": ...}]}
+   */
+  public static String aggregate(String soId, String streamId, String channel, Function function,
+                                 long from, long to, long interval) {
+    if (function != Function.COUNT && (channel == null || channel.isEmpty()))
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "The channel is required for the function " + function.name().toLowerCase());
+    if (to < from)
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "The range ends before it starts");
+    if ((to - from) / interval + 1 > ApiConfig.getInt("aggregate_max_buckets", 10000))
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST,
+          "Too many buckets, use a longer interval or a shorter range");
+
+    String timeField = UpdatesIndex.getTimeField();
+    String channelField = channel == null ? null :
+        ApiConfig.getString("aggregate_channel_field", "doc.channels.%s.current-value").replace("%s", channel);
+
+    final ObjectNode query = query(soId, streamId, timeField, channelField, function, from, to, interval);
+    JsonNode result = Backend.call(new Callable<JsonNode>() {
+      @Override
+      public JsonNode call() throws IOException {
+        long start = System.nanoTime();
+        try {
+          return UpdatesIndex.search(query);
+        } finally {
+          searchAggregate.recordSince(start);
+        }
+      }
+    });
+
+    ObjectNode response = mapper.createObjectNode();
+    response.put("interval", interval);
+    response.put("function", function.name().toLowerCase());
+    if (channel != null)
+      response.put("channel", channel);
+    ArrayNode buckets = response.putArray("buckets");
+    for (JsonNode bucket : result.path("aggregations").path("buckets").path("buckets")) {
+      ObjectNode out = buckets.addObject();
+      long count = bucket.path("doc_count").asLong();
+      out.put("from", bucket.path("key").asLong());
+      out.put("count", count);
+      if (function == Function.COUNT)
+        continue;
+      JsonNode value;
+      if (function == Function.LAST)
+        value = UpdatesIndex.path(bucket.path("value").path("hits").path("hits").path(0).path("_source"), channelField);
+      else
+        value = bucket.path("value").path("value");
+      if (count == 0 || value.isMissingNode())
+        out.putNull("value");
+      else
+        out.set("value", value);
+    }
+    return response.toString();
+  }
+
+  private static ObjectNode query(String soId, String streamId, String timeField, String channelField,
+                                  Function function, long from, long to, long interval) {
+    ObjectNode query = UpdatesIndex.query(soId, streamId);
+    query.put("size", 0);
+
+    ObjectNode range = UpdatesIndex.filters(query).addObject().putObject("range").putObject(timeField);
+    range.put("gte", from);
+    range.put("lte", to);
+
+    ObjectNode buckets = query.putObject("aggs").putObject("buckets");
+    ObjectNode histogram = buckets.putObject("histogram");
+    histogram.put("field", timeField);
+    histogram.put("interval", interval);
+    histogram.put("min_doc_count", 0);
+    ObjectNode bounds = histogram.putObject("extended_bounds");
+    bounds.put("min", from);
+    bounds.put("max", to);
+
+    if (function == Function.COUNT)
+      return query;
+
+    ObjectNode metric = buckets.putObject("aggs").putObject("value");
+    if (function == Function.LAST) {
+      ObjectNode top = metric.putObject("top_hits");
+      top.put("size", 1);
+      top.putArray("sort").addObject().putObject(timeField).put("order", "desc");
+      top.putObject("_source").putArray("include").add(channelField);
+    } else {
+      metric.putObject(function == Function.AVG ? "avg" : function.name().toLowerCase())
+            .put("field", channelField);
+    }
+    return query;
+  }
+}
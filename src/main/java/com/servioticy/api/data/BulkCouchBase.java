@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Bulk operations over CouchBase. The items are split in slices of at most
+ * bulk_chunk_size items that are processed in parallel, so a bulk operation
+ * costs roughly the latency of a few slices instead of one round trip per
+ * item. The pool of bulk_threads threads is shared by all the requests, but
+ * each request uses at most bulk_parallelism of them besides its own thread,
+ * so a large request does not hold the slices of the others behind it.
+ */
+public class BulkCouchBase {
+
+  private static final Logger LOG = Logger.getLogger(BulkCouchBase.class.getName());
+
+  /** Operation applied to every item of a bulk request. */
+  public interface Operation<T> {
+    void apply(T item);
+  }
+
+  private static final LatencyRecorder gets = Metrics.backend("couchbase.getData");
+  private static final LatencyRecorder sets = Metrics.backend("couchbase.setData");
+  private static final LatencyRecorder opIdSets = Metrics.backend("couchbase.setOpId");
+
+  private static volatile ExecutorService executor;
+
+  private static ExecutorService executor() {
+    if (executor == null) {
+      synchronized (BulkCouchBase.class) {
+        if (executor == null) {
+          final AtomicInteger count = new AtomicInteger();
+          executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "couchbase-bulk-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+        }
+      }
+    }
+    return executor;
+  }
+
+  public static synchronized void shutdown() {
+    if (executor != null)
+      executor.shutdownNow();
+    executor = null;
+  }
+
+  public static int getChunkSize() {
+    return Math.max(1, ApiConfig.getInt("bulk_chunk_size", 100));
+  }
+
+  public static int getParallelism() {
+    return Math.max(1, ApiConfig.getInt("bulk_parallelism", 8));
+  }
+
+  public static int getThreads() {
+    return Math.max(getParallelism(), ApiConfig.getInt("bulk_threads", 64));
+  }
+
+  /**
+   * Get the data documents with the given ids. The documents that do not
+   * exist are skipped.
+   *
+   * @return the documents found, in the order of the ids
+   * @throws ServIoTWebApplicationException 503 if some document could not be read
+   */
+  public static List<Data> getData(final List<String> ids) {
+    final Data[] found = new Data[ids.size()];
+    List<Integer> positions = new ArrayList<Integer>(ids.size());
+    for (int i = 0; i < ids.size(); i++)
+      positions.add(i);
+
+    boolean[] ok = apply(positions, gets, new Operation<Integer>() {
+      @Override
+      public void apply(Integer i) {
+        found[i] = CouchBase.getData(ids.get(i));
+      }
+    });
+    checkAll(ok, "Unable to read some of the updates, try again later");
+
+    List<Data> dataItems = new ArrayList<Data>(found.length);
+    for (Data data : found) {
+      if (data != null)
+        dataItems.add(data);
+    }
+    return dataItems;
+  }
+
+  /**
+   * Refuse the request with a 503 if the operation failed for some item, so
+   * that a backend failure is not taken for a missing document.
+   */
+  public static void checkAll(boolean[] results, String message) {
+    for (boolean result : results) {
+      if (!result)
+        throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE, message);
+    }
+  }
+
+  /**
+   * Store the data documents.
+   *
+   * @return for each item, true if it was stored
+   */
+  public static boolean[] setData(List<Data> items) {
+    return apply(items, sets, new Operation<Data>() {
+      @Override
+      public void apply(Data data) {
+        CouchBase.setData(data);
+      }
+    });
+  }
+
+  /**
+   * Store the opIds with the given expiration.
+   *
+   * @return for each opId, true if it was stored
+   */
+  public static boolean[] setOpIds(List<String> opIds, final int expiration) {
+    return apply(opIds, opIdSets, new Operation<String>() {
+      @Override
+      public void apply(String opId) {
+        CouchBase.setOpId(opId, expiration);
+      }
+    });
+  }
+
+  /**
+   * Apply the operation to all the items, in slices processed in parallel.
+   * The request thread and at most bulk_parallelism pool threads take the
+   * slices one after the other, and the request thread does not wait for the
+   * pool threads that did not get to start. A failure only affects the item
+   * that caused it.
+   *
+   * @return for each item, true if the operation succeeded
+   */
+  public static <T> boolean[] apply(final List<T> items, final LatencyRecorder recorder,
+                                    final Operation<T> op) {
+    final boolean[] results = new boolean[items.size()];
+    if (items.size() <= 1) {
+      applyChunk(items, recorder, op, results, 0, items.size());
+      return results;
+    }
+
+    int slices = Math.max(Math.min(getParallelism() + 1, items.size()),
+        (items.size() + getChunkSize() - 1) / getChunkSize());
+    final int sliceSize = (items.size() + slices - 1) / slices;
+    final int count = (items.size() + sliceSize - 1) / sliceSize;
+
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(count);
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int slice;
+        while ((slice = next.getAndIncrement()) < count) {
+          try {
+            applyChunk(items, recorder, op, results, slice * sliceSize,
+                Math.min(items.size(), (slice + 1) * sliceSize));
+          } finally {
+            done.countDown();
+          }
+        }
+      }
+    };
+
+    // Help from the pool, bounded per request
+    int helpers = Math.min(getParallelism(), count - 1);
+    for (int i = 0; i < helpers; i++)
+      executor().execute(worker);
+    worker.run();
+    await(done);
+    return results;
+  }
+
+  private static <T> void applyChunk(List<T> items, LatencyRecorder recorder, Operation<T> op,
+                                     boolean[] results, int start, int end) {
+    for (int i = start; i < end; i++) {
+      long begin = System.nanoTime();
+      try {
+        op.apply(items.get(i));
+        results[i] = true;
+      } catch (RuntimeException e) {
+        LOG.log(Level.FINE, "Bulk operation failed for item " + i, e);
+        results[i] = false;
+      }
+      recorder.recordSince(begin);
+    }
+  }
+
+  private static void await(CountDownLatch done) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+}
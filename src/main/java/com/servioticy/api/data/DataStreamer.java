@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.servioticy.api.commons.datamodel.Data;
+
+/**
+ * Writes a list of sensor updates as the same document built by
+ * Data.responseAllData, but loading and writing the updates a window at a
+ * time. The memory used by a request does not depend on the number of
+ * updates and the client receives the first updates as soon as they are
+ * loaded.
+ *
+ * The document of the first window that has updates is read before the
+ * response starts, so that a list whose documents are all missing is still
+ * answered with a 204. It is written as it is, with the updates of the rest
+ * of the windows appended to its array of updates.
+ */
+public class DataStreamer implements StreamingOutput {
+
+  private static final JsonFactory factory = new JsonFactory();
+
+  private final List<String> ids;
+  private final int window;
+  private final String first;
+  private final int next;
+
+  private DataStreamer(List<String> ids, int window, String first, int next) {
+    this.ids = ids;
+    this.window = window;
+    this.first = first;
+    this.next = next;
+  }
+
+  /**
+   * @param ids ids of the data documents, in response order
+   * @return the streamer, or null if none of the documents exists
+   */
+  public static DataStreamer open(List<String> ids) {
+    return open(ids, BulkCouchBase.getChunkSize() * BulkCouchBase.getParallelism());
+  }
+
+  public static DataStreamer open(List<String> ids, int window) {
+    window = Math.max(1, window);
+    if (ids == null)
+      return null;
+    for (int from = 0; from < ids.size(); from += window) {
+      String chunk = load(ids, from, window);
+      if (chunk != null)
+        return new DataStreamer(ids, window, chunk, from + window);
+    }
+    return null;
+  }
+
+  // Document of the updates of a window, null if none of them exists
+  private static String load(List<String> ids, int from, int window) {
+    List<Data> dataItems = BulkCouchBase.getData(ids.subList(from, Math.min(ids.size(), from + window)));
+    if (dataItems.isEmpty())
+      return null;
+    return Data.responseAllData(dataItems);
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    JsonGenerator generator = factory.createGenerator(output);
+    JsonParser parser = factory.createParser(first);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Unexpected format of the data response");
+      generator.writeStartObject();
+      boolean merged = false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        if (parser.nextToken() != JsonToken.START_ARRAY || merged) {
+          generator.writeFieldName(name);
+          generator.copyCurrentStructure(parser);
+          continue;
+        }
+
+        // The array of updates, followed by the updates of the rest of the windows
+        generator.writeArrayFieldStart(name);
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+          generator.copyCurrentStructure(parser);
+        generator.flush();
+        for (int from = next; from < ids.size(); from += window) {
+          String chunk = load(ids, from, window);
+          if (chunk != null)
+            copyUpdates(chunk, generator);
+          generator.flush();
+        }
+        generator.writeEndArray();
+        merged = true;
+      }
+      if (!merged)
+        throw new IOException("Unexpected format of the data response");
+      generator.writeEndObject();
+    } finally {
+      parser.close();
+    }
+    generator.flush();
+  }
+
+  // Copy the items of the array of updates of a document
+  private static void copyUpdates(String chunk, JsonGenerator generator) throws IOException {
+    JsonParser parser = factory.createParser(chunk);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Unexpected format of the data response");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+          parser.skipChildren();
+          continue;
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+          generator.copyCurrentStructure(parser);
+        return;
+      }
+    } finally {
+      parser.close();
+    }
+  }
+}
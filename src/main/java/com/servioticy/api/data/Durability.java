@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+/**
+ * When a sensor update is acknowledged to the client.
+ */
+public enum Durability {
+
+  /** As soon as it is queued for the write-behind stage. */
+  ENQUEUE,
+  /** When the write-behind batch that contains it has been written. */
+  FLUSH,
+  /**
+   * Written by the request itself, as it has always been. This is the
+   * strictest mode, the replication guarantees are the ones of the CouchBase
+   * client configuration.
+   */
+  SYNC;
+
+  /** @return the mode with the given name, or the default one if it is null or unknown */
+  public static Durability parse(String name, Durability defaultValue) {
+    if (name == null)
+      return defaultValue;
+    String mode = name.trim().toUpperCase();
+    // Acknowledging after replication is what the synchronous writes do
+    if (mode.equals("REPLICATE"))
+      return SYNC;
+    try {
+      return valueOf(mode);
+    } catch (IllegalArgumentException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.cache.LastUpdateCache;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.commons.elasticsearch.SearchEngine;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+
+/**
+ * Latest updates of many streams at once. The streams are looked up in
+ * LastUpdateCache first; the timestamps of the rest are resolved with one
+ * multi-search on the updates index, and their documents are fetched with a
+ * bulk get.
+ */
+public class LastUpdates {
+
+  private static final Logger LOG = Logger.getLogger(LastUpdates.class.getName());
+
+  private static final LatencyRecorder multiSearch = Metrics.backend("search.lastUpdate.multi");
+  private static final LatencyRecorder searchLastUpdate = Metrics.backend("search.lastUpdate");
+  private static final LatencyRecorder couchbaseGetData = Metrics.backend("couchbase.getData");
+
+  /**
+   * @return for each stream, its latest update, or null if it has none
+   */
+  public static Data[] get(final List<String> soIds, final List<String> streamIds) {
+    final Data[] found = new Data[soIds.size()];
+    final List<Integer> misses = new ArrayList<Integer>();
+    for (int i = 0; i < found.length; i++) {
+      found[i] = LastUpdateCache.get(soIds.get(i), streamIds.get(i));
+      if (found[i] == null)
+        misses.add(i);
+    }
+    if (misses.isEmpty())
+      return found;
+
+    final long[] timestamps = timestamps(soIds, streamIds, misses);
+
+    List<Integer> existing = new ArrayList<Integer>();
+    for (int k = 0; k < misses.size(); k++)
+      if (timestamps[k] >= 0)
+        existing.add(k);
+
+    boolean[] ok = BulkCouchBase.apply(existing, couchbaseGetData, new BulkCouchBase.Operation<Integer>() {
+      @Override
+      public void apply(Integer k) {
+        int i = misses.get(k);
+        Data data = CouchBase.getData(soIds.get(i), streamIds.get(i), timestamps[k]);
+        LastUpdateCache.update(soIds.get(i), streamIds.get(i), timestamps[k], data);
+        found[i] = data;
+      }
+    });
+    BulkCouchBase.checkAll(ok, "Unable to read some of the updates, try again later");
+    return found;
+  }
+
+  // Latest timestamp of each missing stream, -1 if it has no updates
+  private static long[] timestamps(final List<String> soIds, final List<String> streamIds,
+                                   final List<Integer> misses) {
+    final long[] timestamps = new long[misses.size()];
+    String timeField = UpdatesIndex.getTimeField();
+
+    List<ObjectNode> queries = new ArrayList<ObjectNode>(misses.size());
+    for (int i : misses) {
+      ObjectNode query = UpdatesIndex.query(soIds.get(i), streamIds.get(i));
+      query.put("size", 1);
+      query.putArray("sort").addObject().putObject(timeField).put("order", "desc");
+      query.putObject("_source").putArray("include").add(timeField);
+      queries.add(query);
+    }
+
+    long start = System.nanoTime();
+    try {
+      JsonNode responses = UpdatesIndex.multiSearch(queries);
+      for (int k = 0; k < timestamps.length; k++) {
+        JsonNode response = responses.path(k);
+        if (response.has("error"))
+          throw new IOException("Multi-search failed: " + response.path("error"));
+        JsonNode hit = response.path("hits").path("hits").path(0);
+        timestamps[k] = UpdatesIndex.path(hit.path("_source"), timeField).asLong(-1);
+      }
+      return timestamps;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Multi-search of the last updates failed, searching them one by one", e);
+    } finally {
+      multiSearch.recordSince(start);
+    }
+
+    // One search per stream, in parallel
+    List<Integer> positions = new ArrayList<Integer>(misses.size());
+    for (int k = 0; k < misses.size(); k++)
+      positions.add(k);
+    boolean[] ok = BulkCouchBase.apply(positions, searchLastUpdate, new BulkCouchBase.Operation<Integer>() {
+      @Override
+      public void apply(Integer k) {
+        int i = misses.get(k);
+        timestamps[k] = SearchEngine.getLastUpdateTimeStamp(soIds.get(i), streamIds.get(i));
+      }
+    });
+    // A stream that could not be searched is not a stream without updates
+    BulkCouchBase.checkAll(ok, "Unable to search some of the updates, try again later");
+    return timestamps;
+  }
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.commons.data.SO;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+
+/**
+ * One page of the Service Objects of a user, in id order, optionally
+ * projected to some fields of their documents.
+ *
+ * The listing returned by CouchBase.getAllSOs is parsed as a stream and
+ * only the entries of the page are kept. The entries can be the ids of the
+ * Service Objects or their documents; when a projection asks for more than
+ * the id of an entry that is only an id, its document is loaded from
+ * SOCache while the page is written.
+ *
+ * Only the memory and the response are bounded by the page size. Commons has
+ * no paged query of the Service Objects of a user, so every page still reads
+ * and parses the whole listing: a page costs O(N) for a user with N Service
+ * Objects, and walking all of them O(N^2 / limit).
+ */
+public class SOListing implements StreamingOutput {
+
+  private static final JsonFactory factory = new JsonFactory();
+  private static final ObjectMapper mapper = new ObjectMapper(factory);
+
+  // id -> document, null if the listing only has the id
+  private final TreeMap<String, JsonNode> entries;
+  private final Set<String> fields;
+  private final String nextCursor;
+
+  private SOListing(TreeMap<String, JsonNode> entries, Set<String> fields, String nextCursor) {
+    this.entries = entries;
+    this.fields = fields;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * @param listing the result of CouchBase.getAllSOs
+   * @param cursor  id of the last Service Object of the previous page, or null
+   * @param limit   maximum number of Service Objects
+   * @param fields  fields of the documents to return, or null for the whole entries
+   */
+  public static SOListing page(String listing, String cursor, int limit, Set<String> fields) {
+    // The smallest limit + 1 ids after the cursor, the extra one tells there is a next page
+    TreeMap<String, JsonNode> entries = new TreeMap<String, JsonNode>();
+    if (listing != null && !listing.trim().isEmpty()) {
+      try {
+        JsonParser parser = factory.createParser(listing);
+        try {
+          if (toArray(parser)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+              String id;
+              JsonNode document = null;
+              if (token == JsonToken.VALUE_STRING) {
+                id = parser.getText();
+              } else {
+                document = mapper.readTree(parser);
+                id = document.path("id").asText(null);
+              }
+              if (id == null || (cursor != null && id.compareTo(cursor) <= 0))
+                continue;
+              entries.put(id, document);
+              if (entries.size() > limit + 1)
+                entries.pollLastEntry();
+            }
+          }
+        } finally {
+          parser.close();
+        }
+      } catch (IOException e) {
+        throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+            "Unexpected format of the Service Objects listing");
+      }
+    }
+
+    String nextCursor = null;
+    if (entries.size() > limit) {
+      entries.pollLastEntry();
+      nextCursor = entries.lastKey();
+    }
+    return new SOListing(entries, fields, nextCursor);
+  }
+
+  // Move to the array of entries, the listing is an array or an object with one
+  private static boolean toArray(JsonParser parser) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token == JsonToken.START_ARRAY)
+      return true;
+    if (token != JsonToken.START_OBJECT)
+      return false;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      if (parser.nextToken() == JsonToken.START_ARRAY)
+        return true;
+      parser.skipChildren();
+    }
+    return false;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /** @return the cursor of the next page, or null if this is the last one */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    JsonGenerator generator = factory.createGenerator(output);
+    generator.writeStartArray();
+    for (Map.Entry<String, JsonNode> entry : entries.entrySet()) {
+      String id = entry.getKey();
+      JsonNode document = entry.getValue();
+      if (fields == null) {
+        if (document == null)
+          generator.writeString(id);
+        else
+          generator.writeTree(document);
+        continue;
+      }
+
+      if (document == null && !(fields.size() == 1 && fields.contains("id"))) {
+        SO so = SOCache.get(id);
+        // Deleted after the listing
+        if (so == null)
+          continue;
+        document = mapper.readTree(so.responseGetSO());
+      }
+
+      generator.writeStartObject();
+      generator.writeStringField("id", id);
+      if (document != null) {
+        for (Map.Entry<String, JsonNode> field : iterable(document)) {
+          if (!field.getKey().equals("id") && fields.contains(field.getKey())) {
+            generator.writeFieldName(field.getKey());
+            generator.writeTree(field.getValue());
+          }
+        }
+      }
+      generator.writeEndObject();
+      generator.flush();
+    }
+    generator.writeEndArray();
+    generator.flush();
+  }
+
+  private static Iterable<Map.Entry<String, JsonNode>> iterable(final JsonNode node) {
+    return new Iterable<Map.Entry<String, JsonNode>>() {
+      @Override
+      public Iterator<Map.Entry<String, JsonNode>> iterator() {
+        return node.fields();
+      }
+    };
+  }
+}
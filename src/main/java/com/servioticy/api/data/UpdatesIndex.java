@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.SearchHttp;
+
+/**
+ * Queries on the Elasticsearch index of the sensor updates through the REST
+ * interface of the search servers (see SearchHttp), for
+ * the searches that the commons SearchEngine does not offer. The index and
+ * the names of the fields of the indexed updates are set with the
+ * search_updates_index and search_*_field settings, which are also read
+ * with their former aggregate_index and aggregate_*_field names.
+ */
+public class UpdatesIndex {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  public static String getTimeField() {
+    return setting("search_time_field", "aggregate_time_field", "doc.lastUpdate");
+  }
+
+  /** New query on the updates of a stream, with its filter array to add more conditions. */
+  public static ObjectNode query(String soId, String streamId) {
+    ObjectNode query = mapper.createObjectNode();
+    ArrayNode must = query.putObject("query").putObject("filtered").putObject("filter")
+                          .putObject("bool").putArray("must");
+    must.addObject().putObject("term").put(setting("search_so_field", "aggregate_so_field", "doc.soId"), soId);
+    must.addObject().putObject("term").put(setting("search_stream_field", "aggregate_stream_field", "doc.streamId"), streamId);
+    return query;
+  }
+
+  /** Conditions of a query created by query(). */
+  public static ArrayNode filters(ObjectNode query) {
+    return (ArrayNode) query.path("query").path("filtered").path("filter").path("bool").path("must");
+  }
+
+  /** Run a search. */
+  public static JsonNode search(ObjectNode query) throws IOException {
+    return SearchHttp.post("/" + index() + "/_search", query.toString() + "\n");
+  }
+
+  /**
+   * Run several searches in a single request.
+   *
+   * @return the responses, in the order of the queries
+   */
+  public static JsonNode multiSearch(List<ObjectNode> queries) throws IOException {
+    StringBuilder body = new StringBuilder();
+    String header = "{\"index\":\"" + index() + "\"}\n";
+    for (ObjectNode query : queries)
+      body.append(header).append(query.toString()).append('\n');
+    return SearchHttp.post("/_msearch", body.toString()).path("responses");
+  }
+
+  /** Field of a document by its dotted name. */
+  public static JsonNode path(JsonNode node, String field) {
+    for (String name : field.split("\\."))
+      node = node.path(name);
+    return node;
+  }
+
+  private static String index() {
+    return setting("search_updates_index", "aggregate_index", ApiConfig.getString("updates_bucket", "soupdates"));
+  }
+
+  // Setting by its name, or by the name it had when only the aggregations used it
+  private static String setting(String name, String previousName, String defaultValue) {
+    return ApiConfig.getString(name, ApiConfig.getString(previousName, defaultValue));
+  }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.utils.Backend;
+
+/**
+ * One page of the update history of a stream, newest first unless asked
+ * otherwise.
+ *
+ * The search itself is sorted by timestamp and limited to the page, through
+ * UpdatesIndex, and the cursor is the timestamp of the last update of the
+ * page, so the next page is a range query that starts after it
+ * (search-after), backwards when newest first, instead of an offset into the
+ * whole history.
+ */
+public class UpdatesPage {
+
+  private static final LatencyRecorder searchPage = Metrics.backend("search.page");
+
+  private final List<String> ids;
+  private final String nextCursor;
+
+  private UpdatesPage(List<String> ids, String nextCursor) {
+    this.ids = ids;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * @param from         first timestamp included, or null
+   * @param to           last timestamp included, or null
+   * @param cursor       cursor returned with the previous page, or null
+   * @param newestFirst  order of the updates, and direction of the cursor
+   * @param limit        maximum number of updates in the page
+   */
+  public static UpdatesPage fetch(String soId, String streamId, Long from, Long to,
+                                  String cursor, boolean newestFirst, int limit) {
+    if (cursor != null) {
+      long position = decodeCursor(cursor);
+      if (newestFirst)
+        to = to == null ? position - 1 : Math.min(to, position - 1);
+      else
+        from = from == null ? position + 1 : Math.max(from, position + 1);
+    }
+
+    String timeField = UpdatesIndex.getTimeField();
+    final ObjectNode query = UpdatesIndex.query(soId, streamId);
+    // One more, to know if there is a next page
+    query.put("size", limit + 1);
+    query.put("_source", false);
+    if (from != null || to != null) {
+      ObjectNode range = UpdatesIndex.filters(query).addObject().putObject("range").putObject(timeField);
+      if (from != null)
+        range.put("gte", from);
+      if (to != null)
+        range.put("lte", to);
+    }
+    query.putArray("sort").addObject().putObject(timeField).put("order", newestFirst ? "desc" : "asc");
+
+    JsonNode result = Backend.call(new Callable<JsonNode>() {
+      @Override
+      public JsonNode call() throws IOException {
+        long start = System.nanoTime();
+        try {
+          return UpdatesIndex.search(query);
+        } finally {
+          searchPage.recordSince(start);
+        }
+      }
+    });
+
+    JsonNode hits = result.path("hits").path("hits");
+    List<String> ids = new ArrayList<String>(Math.min(limit, hits.size()));
+    JsonNode last = null;
+    for (int i = 0; i < hits.size() && i < limit; i++) {
+      ids.add(hits.get(i).path("_id").asText());
+      last = hits.get(i).path("sort").path(0);
+    }
+
+    if (hits.size() <= limit)
+      return new UpdatesPage(ids, null);
+    if (!last.canConvertToLong())
+      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+          "The updates have no timestamp to page them by");
+    return new UpdatesPage(ids, encodeCursor(last.asLong()));
+  }
+
+  private static String encodeCursor(long timestamp) {
+    return Long.toString(timestamp, Character.MAX_RADIX);
+  }
+
+  private static long decodeCursor(String cursor) {
+    try {
+      return Long.parseLong(cursor, Character.MAX_RADIX);
+    } catch (NumberFormatException e) {
+      throw new ServIoTWebApplicationException(Response.Status.BAD_REQUEST, "Invalid cursor");
+    }
+  }
+
+  public List<String> getIds() {
+    return ids;
+  }
+
+  /** @return the cursor of the next page, or null if this is the last one */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.cache.LastUpdateCache;
+import com.servioticy.api.commons.utils.Config;
+import com.servioticy.api.live.LiveUpdates;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Write-behind stage for the sensor updates. The data documents and opIds of
+ * many requests are collected and written together by BulkCouchBase when
+ * write_behind_batch items are pending or write_behind_interval milliseconds
+ * have passed since the first of them arrived (group commit). An update is
+ * kept as the latest of its stream and pushed to the watchers only once it
+ * is stored.
+ */
+public class WriteBehind {
+
+  private static final Logger LOG = Logger.getLogger(WriteBehind.class.getName());
+
+  /** A sensor update waiting to be written. */
+  public static class Pending {
+    final Data data;
+    final String opId;
+    final String soId;
+    final String streamId;
+    final long timestamp;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean stored;
+
+    Pending(Data data, String opId, String soId, String streamId, long timestamp) {
+      this.data = data;
+      this.opId = opId;
+      this.soId = soId;
+      this.streamId = streamId;
+      this.timestamp = timestamp;
+    }
+
+    void complete(boolean result) {
+      stored = result;
+      done.countDown();
+    }
+
+    /** @return whether the write has finished, successfully or not */
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * Wait until the update is written.
+     *
+     * @return true if it was stored, false if it failed or the timeout expired
+     */
+    public boolean await(long timeout) {
+      try {
+        return done.await(timeout, TimeUnit.MILLISECONDS) && stored;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  private static final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>(
+      Math.max(1, ApiConfig.getInt("write_behind_queue", 100000)));
+
+  private static Thread flusher;
+  private static volatile boolean running;
+
+  public static Durability getDefaultDurability() {
+    return Durability.parse(ApiConfig.getString("durability_default", "sync"), Durability.SYNC);
+  }
+
+  /** Queue a sensor update and its opId. When the stage is full the request is refused with a 503. */
+  public static Pending submit(Data data, String opId, String soId, String streamId, long timestamp) {
+    start();
+    Pending pending = new Pending(data, opId, soId, streamId, timestamp);
+    if (!queue.offer(pending))
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "Too many updates waiting to be stored, try again later");
+    return pending;
+  }
+
+  /** Number of updates waiting to be written. */
+  public static int getPending() {
+    return queue.size();
+  }
+
+  /** Fraction of the stage that is taken by updates waiting to be written. */
+  public static double getQueueUsage() {
+    int pending = queue.size();
+    return (double) pending / (pending + queue.remainingCapacity());
+  }
+
+  private static synchronized void start() {
+    if (running)
+      return;
+    running = true;
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running || !queue.isEmpty()) {
+          try {
+            flush(collect());
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Write-behind flush failed", e);
+          }
+        }
+        // Stopped, write whatever is left
+        flush(drain());
+      }
+    }, "write-behind");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /** Stop the stage after writing the pending updates. */
+  public static void shutdown() {
+    Thread thread;
+    synchronized (WriteBehind.class) {
+      if (!running)
+        return;
+      running = false;
+      thread = flusher;
+      flusher = null;
+    }
+    thread.interrupt();
+    try {
+      thread.join(ApiConfig.getLong("write_behind_shutdown", 30000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Wait for the first update and then for the rest of the batch, at most the interval.
+  // Interrupted by shutdown, it returns what it has so that it is still written
+  private static List<Pending> collect() {
+    int batch = Math.max(1, ApiConfig.getInt("write_behind_batch", 500));
+    long interval = ApiConfig.getLong("write_behind_interval", 50);
+
+    List<Pending> items = new ArrayList<Pending>();
+    try {
+      Pending first = queue.poll(1, TimeUnit.SECONDS);
+      if (first == null)
+        return items;
+      items.add(first);
+
+      long deadline = System.currentTimeMillis() + interval;
+      while (items.size() < batch) {
+        queue.drainTo(items, batch - items.size());
+        long wait = deadline - System.currentTimeMillis();
+        if (items.size() >= batch || wait <= 0)
+          break;
+        Pending next = queue.poll(wait, TimeUnit.MILLISECONDS);
+        if (next == null)
+          break;
+        items.add(next);
+      }
+    } catch (InterruptedException e) {
+      running = false;
+    }
+    return items;
+  }
+
+  private static List<Pending> drain() {
+    List<Pending> items = new ArrayList<Pending>();
+    queue.drainTo(items);
+    return items;
+  }
+
+  private static void flush(List<Pending> items) {
+    if (items.isEmpty())
+      return;
+
+    List<Data> dataItems = new ArrayList<Data>(items.size());
+    List<String> opIds = new ArrayList<String>(items.size());
+    for (Pending pending : items) {
+      dataItems.add(pending.data);
+      opIds.add(pending.opId);
+    }
+
+    boolean[] stored = BulkCouchBase.setData(dataItems);
+    boolean[] opIdsSet = BulkCouchBase.setOpIds(opIds, Config.getOpIdExpiration());
+
+    for (int i = 0; i < items.size(); i++) {
+      stored[i] &= opIdsSet[i];
+      Pending pending = items.get(i);
+      if (!stored[i]) {
+        LOG.warning("Write-behind could not store update " + opIds.get(i));
+      } else {
+        // Keep it as the latest update of the stream and push it to the watchers
+        try {
+          LastUpdateCache.update(pending.soId, pending.streamId, pending.timestamp, pending.data);
+          LiveUpdates.publish(pending.soId, pending.streamId, pending.timestamp, pending.data);
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Could not publish update " + opIds.get(i), e);
+        }
+      }
+      pending.complete(stored[i]);
+    }
+  }
+}
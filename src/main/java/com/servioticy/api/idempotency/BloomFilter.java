@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.idempotency;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter of strings. A negative answer is exact, a positive
+ * one is wrong with the configured probability once the expected number of
+ * keys has been added.
+ */
+public class BloomFilter {
+
+  private final AtomicLongArray bits;
+  private final long size;
+  private final int hashes;
+
+  /**
+   * @param expected          number of keys that will be added
+   * @param falsePositiveRate probability of a wrong positive answer with that many keys
+   */
+  public BloomFilter(int expected, double falsePositiveRate) {
+    expected = Math.max(1, expected);
+    long m = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    this.size = Math.max(64, (m + 63) / 64 * 64);
+    this.hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+    this.bits = new AtomicLongArray((int) (size / 64));
+  }
+
+  public void add(String key) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      long bit = index(h1 + i * h2);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long old;
+      do {
+        old = bits.get(word);
+        if ((old & mask) != 0)
+          break;
+      } while (!bits.compareAndSet(word, old, old | mask));
+    }
+  }
+
+  /** @return false if the key was never added, true if it probably was */
+  public boolean mightContain(String key) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      long bit = index(h1 + i * h2);
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  private long index(int combined) {
+    return (combined & Integer.MAX_VALUE) % size;
+  }
+
+  // 64-bit FNV-1a with a final mix, split in two for double hashing
+  private static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
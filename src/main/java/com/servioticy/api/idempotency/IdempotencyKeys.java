@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.idempotency;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.cache.SORevision;
+import com.servioticy.api.cache.TtlCache;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.commons.utils.Config;
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.Backend;
+import com.servioticy.api.utils.SearchHttp;
+
+/**
+ * Idempotency keys of the sensor updates.
+ *
+ * Every accepted key is recorded in a marker document, with the opId derived
+ * from the key as its id and the original response, in the idempotency_index
+ * of the search servers. The commons store of the opIds cannot be read back,
+ * that is why the markers are kept apart. They are written in the background,
+ * ignored once older than the opId expiration and purged every expiration
+ * period.
+ *
+ * The keys accepted by this node are in a Bloom filter and their responses in
+ * a cache. How a retry is recognized depends on idempotency_scope:
+ *
+ *   node     the filter is the gate: a key it has not seen is new without
+ *            any remote lookup, and the marker is only read when the filter
+ *            has seen the key but its response is no longer cached. Retries
+ *            are only recognized by the node that accepted the key (clients
+ *            must stick to a node) and not after it restarts.
+ *   cluster  the marker is read for every key whose response is not cached,
+ *            so retries are recognized by any node, at the cost of a search
+ *            server GET for each new key.
+ *
+ * The filter is made of two generations that are rotated every opId
+ * expiration period, so a key stays in it between one and two periods.
+ *
+ * The requests in progress with a key are only known by their node, two
+ * retries sent at the same time to two nodes are both stored and queued.
+ */
+public class IdempotencyKeys {
+
+  private static final Logger LOG = Logger.getLogger(IdempotencyKeys.class.getName());
+
+  /** Response given to the first request with a key. */
+  public static class Original {
+    private final String opId;
+    private final String response;
+
+    Original(String opId, String response) {
+      this.opId = opId;
+      this.response = response;
+    }
+
+    public String getOpId() {
+      return opId;
+    }
+
+    public String getResponse() {
+      return response;
+    }
+  }
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final LatencyRecorder markerGets = Metrics.backend("search.idempotency.get");
+  private static final LatencyRecorder markerPuts = Metrics.backend("search.idempotency.put");
+
+  private static final TtlCache<String, Original> responses = new TtlCache<String, Original>(
+      ApiConfig.getInt("idempotency_cache_size", 100000), expiration());
+  private static final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+
+  private static volatile BloomFilter current = newFilter();
+  private static volatile BloomFilter previous = newFilter();
+  private static volatile long rotated = System.currentTimeMillis();
+
+  private static long expiration() {
+    return Math.max(1000L, Config.getOpIdExpiration() * 1000L);
+  }
+
+  private static BloomFilter newFilter() {
+    return new BloomFilter(ApiConfig.getInt("idempotency_filter_keys", 1000000),
+        ApiConfig.getDouble("idempotency_filter_fpp", 0.01));
+  }
+
+  /** Key of a request, scoped to the user and the stream. */
+  public static String key(String userId, String soId, String streamId, String idempotencyKey) {
+    return userId + "/" + soId + "/" + streamId + "/" + idempotencyKey;
+  }
+
+  /** Deterministic opId of a key, the same in every node. */
+  public static String opId(String key) {
+    return SORevision.digest(key).substring(0, 32);
+  }
+
+  /**
+   * Find the original response of a key accepted by any node.
+   *
+   * @return the original response, or null if the key was not accepted
+   * @throws ServIoTWebApplicationException 503 if the markers cannot be read
+   */
+  public static Original find(String key) {
+    boolean seen = mightBeSeen(key);
+    Original original = seen ? responses.get(key) : null;
+    if (original != null)
+      return original;
+    // Not seen by this node, in the node scope it is a new key
+    if (!seen && !"cluster".equals(ApiConfig.getString("idempotency_scope", "node")))
+      return null;
+
+    final String opId = opId(key);
+    JsonNode marker = Backend.call(new Callable<JsonNode>() {
+      @Override
+      public JsonNode call() {
+        long start = System.nanoTime();
+        try {
+          SearchHttp.Reply reply = SearchHttp.send("GET", markerPath(opId), null);
+          if (reply.getStatus() == 404)
+            return null;
+          if (reply.getStatus() >= 400)
+            throw new IOException("HTTP " + reply.getStatus());
+          return reply.getBody();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to read the idempotency marker " + opId, e);
+          throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+              "Unable to check the Idempotency-Key, try again later");
+        } finally {
+          markerGets.recordSince(start);
+        }
+      }
+    });
+    if (marker == null || !marker.path("found").asBoolean(false))
+      return null;
+
+    JsonNode source = marker.path("_source");
+    if (System.currentTimeMillis() - source.path("createdAt").asLong(0) > expiration())
+      return null;
+    original = new Original(opId, source.path("response").asText());
+    remember(key, original);
+    return original;
+  }
+
+  /** @return the original response of a key accepted by this node, or null */
+  public static Original cached(String key) {
+    return responses.get(key);
+  }
+
+  /**
+   * Mark a key as being processed.
+   *
+   * @return false if another request with the same key is in progress
+   */
+  public static boolean begin(String key) {
+    return inFlight.putIfAbsent(key, Boolean.TRUE) == null;
+  }
+
+  /**
+   * Record the response of a key that has been processed. Its marker is
+   * written in the background, one that cannot be written is logged, the
+   * update is already stored by then.
+   */
+  public static void accepted(String key, final String opId, String response) {
+    remember(key, new Original(opId, response));
+
+    final String path = markerPath(opId);
+    ObjectNode marker = mapper.createObjectNode();
+    marker.put("response", response);
+    marker.put("createdAt", System.currentTimeMillis());
+    final String body = marker.toString();
+    background("write the idempotency marker " + opId, new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        long start = System.nanoTime();
+        try {
+          SearchHttp.Reply reply = SearchHttp.send("PUT", path, body);
+          if (reply.getStatus() >= 400)
+            throw new IOException("HTTP " + reply.getStatus());
+          return null;
+        } finally {
+          markerPuts.recordSince(start);
+        }
+      }
+    });
+  }
+
+  /** End the processing of a key, successful or not. */
+  public static void end(String key) {
+    inFlight.remove(key);
+  }
+
+  // The filter only says whether the response may be in the cache of this node
+  private static boolean mightBeSeen(String key) {
+    rotate();
+    return current.mightContain(key) || previous.mightContain(key);
+  }
+
+  private static void remember(String key, Original original) {
+    rotate();
+    current.add(key);
+    responses.put(key, original);
+  }
+
+  private static String markerPath(String opId) {
+    return "/" + ApiConfig.getString("idempotency_index", "idempotency") + "/key/" + opId;
+  }
+
+  // Delete the markers that have expired, every node does it when it rotates its filter
+  private static void purge(long before) {
+    final String path;
+    try {
+      path = "/" + ApiConfig.getString("idempotency_index", "idempotency") + "/key/_query?q="
+          + URLEncoder.encode("createdAt:<" + before, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    background("purge the idempotency markers", new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        SearchHttp.Reply reply = SearchHttp.send("DELETE", path, null);
+        // No index yet, nothing to purge
+        if (reply.getStatus() >= 400 && reply.getStatus() != 404)
+          throw new IOException("HTTP " + reply.getStatus());
+        return null;
+      }
+    });
+  }
+
+  // Run a call on the backend executor without waiting for it, logging its failure
+  private static void background(final String what, final Callable<Void> call) {
+    try {
+      Backend.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            call.call();
+          } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to " + what, e);
+          }
+          return null;
+        }
+      });
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to " + what, e);
+    }
+  }
+
+  private static void rotate() {
+    long now = System.currentTimeMillis();
+    if (now - rotated < expiration())
+      return;
+    synchronized (IdempotencyKeys.class) {
+      if (now - rotated < expiration())
+        return;
+      previous = current;
+      current = newFilter();
+      rotated = now;
+    }
+    purge(now - expiration());
+  }
+
+  public static TtlCache<String, Original> getCache() {
+    return responses;
+  }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.jobs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.servioticy.api.cache.LastUpdateCache;
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.commons.data.CouchBase;
+import com.servioticy.api.commons.elasticsearch.SearchEngine;
+
+/**
+ * Background deletion of the updates of a stream, or of a whole Service Object
+ * with all its updates and subscriptions. The progress can be polled while it runs.
+ *
+ * The document of the Service Object is deleted last, and only if all the rest
+ * was, so a failed job leaves it in place and deleting the Service Object again
+ * retries it. Meanwhile this node does not serve it, and its updates are listed
+ * again before it goes, for the ones stored through other nodes. Commons deletes one document per call, the workers take the ids
+ * in batches of delete_batch and are throttled once per batch.
+ */
+public class DeletionJob implements Runnable {
+
+  private static final Logger LOG = Logger.getLogger(DeletionJob.class.getName());
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  public enum State { QUEUED, RUNNING, FINISHED, FAILED }
+
+  // Listings of the updates after the first one, until one finds nothing new
+  private static final int RELISTS = 3;
+
+  private final String id = UUID.randomUUID().toString().replaceAll("-", "");
+  private final String userId;
+  private final String soId;
+  private final String streamId;
+  private final boolean so;
+  private final long created = System.currentTimeMillis();
+
+  private volatile State state = State.QUEUED;
+  private volatile int total = -1;
+  private final AtomicInteger deleted = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private volatile long finished = -1;
+
+  private ExecutorService executor;
+  private Throttle throttle;
+
+  /**
+   * @param userId    owner of the job, the only one allowed to poll it
+   * @param soId      Service Object whose updates are deleted
+   * @param streamId  stream whose updates are deleted, null for all of them
+   * @param so        also delete the subscriptions and then the Service Object
+   */
+  public DeletionJob(String userId, String soId, String streamId, boolean so) {
+    this.userId = userId;
+    this.soId = soId;
+    this.streamId = streamId;
+    this.so = so;
+  }
+
+  void setExecution(ExecutorService executor, Throttle throttle) {
+    this.executor = executor;
+    this.throttle = throttle;
+  }
+
+  @Override
+  public void run() {
+    state = State.RUNNING;
+    try {
+      List<String> ids = new ArrayList<String>(SearchEngine.getAllUpdatesId(soId, streamId));
+      if (so)
+        ids.addAll(SearchEngine.getAllSubscriptionsBySrcAndDst(soId));
+      total = ids.size();
+
+      delete(ids);
+
+      // Updates stored meanwhile through other nodes, which still serve the Service Object
+      if (so) {
+        Set<String> seen = new HashSet<String>(ids);
+        for (int round = 0; round < RELISTS && failed.get() == 0; round++) {
+          List<String> more = new ArrayList<String>();
+          for (String updateId : SearchEngine.getAllUpdatesId(soId, null))
+            if (seen.add(updateId))
+              more.add(updateId);
+          if (more.isEmpty())
+            break;
+          total += more.size();
+          delete(more);
+        }
+      }
+
+      if (failed.get() > 0) {
+        state = State.FAILED;
+        return;
+      }
+
+      // Nothing is left behind, the Service Object can go now
+      if (so) {
+        CouchBase.deleteSO(soId);
+        SOCache.invalidate(soId);
+        LastUpdateCache.invalidate(soId);
+      }
+      state = State.FINISHED;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Deletion job " + id + " of " + soId + " failed", e);
+      state = State.FAILED;
+    } finally {
+      finished = System.currentTimeMillis();
+    }
+  }
+
+  // Split the ids in batches between the deletion workers, which share the throttle
+  private void delete(final List<String> ids) throws InterruptedException {
+    final int batch = DeletionJobs.getBatchSize();
+    final AtomicInteger next = new AtomicInteger();
+    int workers = Math.min(DeletionJobs.getParallelism(), Math.max(1, (ids.size() + batch - 1) / batch));
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int w = 0; w < workers; w++) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          int from;
+          while ((from = next.getAndAdd(batch)) < ids.size()) {
+            int to = Math.min(from + batch, ids.size());
+            try {
+              throttle.acquire(to - from);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+            int done = 0;
+            for (int i = from; i < to; i++) {
+              try {
+                CouchBase.deleteData(ids.get(i));
+                done++;
+              } catch (RuntimeException e) {
+                failed.incrementAndGet();
+              }
+            }
+            deleted.addAndGet(done);
+          }
+        }
+      });
+    }
+
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (Runnable task : tasks)
+      futures.add(executor.submit(task));
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        failed.incrementAndGet();
+      }
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public String getSoId() {
+    return soId;
+  }
+
+  /** @return whether the job deletes the whole Service Object */
+  public boolean deletesSO() {
+    return so;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isDone() {
+    return state == State.FINISHED || state == State.FAILED;
+  }
+
+  public String toJson() {
+    ObjectNode json = mapper.createObjectNode();
+    json.put("id", id);
+    json.put("soId", soId);
+    if (streamId != null)
+      json.put("streamId", streamId);
+    json.put("state", state.name().toLowerCase());
+    json.put("total", total);
+    json.put("deleted", deleted.get());
+    json.put("failed", failed.get());
+    json.put("created", created);
+    if (finished >= 0)
+      json.put("finished", finished);
+    return json.toString();
+  }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.jobs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.cache.SOCache;
+import com.servioticy.api.cache.TtlCache;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Runs the deletion jobs in the background and keeps them around for polling
+ * until they expire.
+ *
+ * The jobs only live in the memory of the node that runs them: they can only
+ * be polled through that node, and a job of a node that stops is lost (the
+ * Service Object is kept then, so deleting it again starts over).
+ */
+public class DeletionJobs {
+
+  private static final TtlCache<String, DeletionJob> jobs = new TtlCache<String, DeletionJob>(
+      ApiConfig.getInt("delete_jobs_max", 10000), ApiConfig.getLong("delete_jobs_retention", 3600000));
+
+  private static final ConcurrentMap<String, DeletionJob> deletingSO =
+      new ConcurrentHashMap<String, DeletionJob>();
+
+  private static ExecutorService runner;
+  private static ExecutorService workers;
+  private static Throttle throttle;
+
+  public static int getParallelism() {
+    return Math.max(1, ApiConfig.getInt("delete_parallelism", 4));
+  }
+
+  public static int getBatchSize() {
+    return Math.max(1, ApiConfig.getInt("delete_batch", 100));
+  }
+
+  /**
+   * Queue the job and keep it for polling. A job that deletes a Service
+   * Object hides it from this node until it ends (see SOCache.markDeleting).
+   *
+   * @return the job, or the one of the same user already deleting the same Service Object
+   * @throws ServIoTWebApplicationException 409 if another user is deleting it
+   */
+  public static synchronized DeletionJob submit(final DeletionJob job) {
+    // Deleting a Service Object again while its job runs is not a retry yet
+    if (job.deletesSO()) {
+      DeletionJob running = deletingSO.get(job.getSoId());
+      if (running != null) {
+        if (!running.getUserId().equals(job.getUserId()))
+          throw new ServIoTWebApplicationException(Response.Status.CONFLICT,
+              "The Service Object is already being deleted");
+        return running;
+      }
+      deletingSO.put(job.getSoId(), job);
+      SOCache.markDeleting(job.getSoId());
+    }
+
+    if (runner == null) {
+      runner = Executors.newFixedThreadPool(Math.max(1, ApiConfig.getInt("delete_jobs_threads", 2)),
+          threadFactory("deletion-job-"));
+      workers = Executors.newFixedThreadPool(getParallelism(), threadFactory("deletion-worker-"));
+      throttle = new Throttle(ApiConfig.getInt("delete_rate", 1000));
+    }
+    job.setExecution(workers, throttle);
+    jobs.put(job.getId(), job);
+    runner.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          job.run();
+        } finally {
+          if (job.deletesSO()) {
+            SOCache.unmarkDeleting(job.getSoId());
+            deletingSO.remove(job.getSoId(), job);
+          }
+        }
+      }
+    });
+    return job;
+  }
+
+  /** @return the job deleting a Service Object in this node, or null */
+  public static DeletionJob getDeletingSO(String soId) {
+    return deletingSO.get(soId);
+  }
+
+  /** @return the job, or null if it does not exist or has expired */
+  public static DeletionJob get(String jobId) {
+    return jobs.get(jobId);
+  }
+
+  public static synchronized void shutdown() {
+    if (runner != null) {
+      runner.shutdownNow();
+      workers.shutdownNow();
+    }
+    runner = null;
+    workers = null;
+  }
+
+  private static ThreadFactory threadFactory(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + count.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    };
+  }
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.jobs;
+
+/**
+ * Spaces operations so that no more than a fixed number per second are
+ * started, shared by all the threads that use it.
+ */
+public class Throttle {
+
+  private final long intervalNanos;
+  private long next = System.nanoTime();
+
+  /** @param perSecond operations per second, 0 for no limit */
+  public Throttle(int perSecond) {
+    this.intervalNanos = perSecond <= 0 ? 0 : 1000000000L / perSecond;
+  }
+
+  /** Wait until the next operation can start. */
+  public void acquire() throws InterruptedException {
+    acquire(1);
+  }
+
+  /** Wait until the next count operations can start, as a batch. */
+  public void acquire(int count) throws InterruptedException {
+    if (intervalNanos == 0)
+      return;
+
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (next < now)
+        next = now;
+      wait = next - now;
+      next += intervalNanos * count;
+    }
+    if (wait > 0)
+      Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+  }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Writes the updates received by a watcher as Server-Sent Events until the
+ * client disconnects or the maximum duration of the connection is reached.
+ * A comment is sent when there are no updates, to keep the connection open
+ * and to detect disconnected clients. The container thread of the request
+ * is blocked here for the whole connection, see LiveUpdates.
+ */
+public class EventStream implements StreamingOutput {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(UTF8);
+
+  private final Watcher watcher;
+
+  public EventStream(Watcher watcher) {
+    this.watcher = watcher;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    long heartbeat = ApiConfig.getLong("live_heartbeat", 15000);
+    long end = System.currentTimeMillis() + ApiConfig.getLong("live_max_duration", 3600000);
+    try {
+      output.write(("retry: " + ApiConfig.getLong("live_retry", 3000) + "\n\n").getBytes(UTF8));
+      output.flush();
+      while (System.currentTimeMillis() < end) {
+        Watcher.Update update = watcher.next(heartbeat);
+        if (update == null) {
+          output.write(HEARTBEAT);
+        } else {
+          output.write(("id: " + update.timestamp + "\n").getBytes(UTF8));
+          output.write(("data: " + update.json.replace("\n", "\ndata: ") + "\n\n").getBytes(UTF8));
+        }
+        output.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      LiveUpdates.unwatch(watcher);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.live;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.commons.datamodel.Data;
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Fans out the updates accepted by this node to the clients watching their
+ * streams, through Server-Sent Events or long polling.
+ *
+ * This is a thread-per-connection implementation: Jersey 1 cannot suspend a
+ * response, so every watcher holds a container thread for as long as it is
+ * connected. live_max_watchers must stay well below the size of the thread
+ * pool of the container, or the watchers starve the rest of the endpoints,
+ * and that caps the clients of a node at a few tens, far fewer than the
+ * clients that poll lastUpdate. Serving them at that scale needs the
+ * asynchronous I/O of Servlet 3.0 outside Jersey. The watcher of a request
+ * is always unregistered when the request ends, by WatcherCleanup.
+ */
+public class LiveUpdates {
+
+  private static final ConcurrentHashMap<String, CopyOnWriteArrayList<Watcher>> watchers =
+      new ConcurrentHashMap<String, CopyOnWriteArrayList<Watcher>>();
+  private static final AtomicInteger count = new AtomicInteger();
+
+  private static String key(String soId, String streamId) {
+    return soId + "/" + streamId;
+  }
+
+  /**
+   * Register the watcher of a request, refusing it with a 503 if the node has
+   * too many.
+   */
+  public static Watcher watch(ServletRequest request, String soId, String streamId) {
+    if (count.incrementAndGet() > ApiConfig.getInt("live_max_watchers", 50)) {
+      count.decrementAndGet();
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "Too many clients watching updates, try again later");
+    }
+
+    Watcher watcher = new Watcher(soId, streamId, ApiConfig.getInt("live_watcher_queue", 16));
+    String key = key(soId, streamId);
+    CopyOnWriteArrayList<Watcher> list = watchers.get(key);
+    if (list == null) {
+      list = new CopyOnWriteArrayList<Watcher>();
+      CopyOnWriteArrayList<Watcher> current = watchers.putIfAbsent(key, list);
+      if (current != null)
+        list = current;
+    }
+    list.add(watcher);
+    request.setAttribute(WatcherCleanup.ATTRIBUTE, watcher);
+    return watcher;
+  }
+
+  public static void unwatch(Watcher watcher) {
+    String key = key(watcher.getSoId(), watcher.getStreamId());
+    CopyOnWriteArrayList<Watcher> list = watchers.get(key);
+    if (list != null && list.remove(watcher)) {
+      count.decrementAndGet();
+      if (list.isEmpty())
+        watchers.remove(key, list);
+    }
+  }
+
+  /** Deliver an update to the watchers of its stream. */
+  public static void publish(String soId, String streamId, long timestamp, Data data) {
+    CopyOnWriteArrayList<Watcher> list = watchers.get(key(soId, streamId));
+    if (list == null || list.isEmpty())
+      return;
+
+    // Serialized once for all the watchers
+    Watcher.Update update = new Watcher.Update(timestamp, data.responseLastUpdate());
+    for (Watcher watcher : list)
+      watcher.offer(update);
+  }
+
+  public static int getWatchers() {
+    return count.get();
+  }
+}
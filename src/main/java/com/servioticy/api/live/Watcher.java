@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.live;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client waiting for the updates of one stream. Updates that arrive while
+ * the queue is full replace the oldest pending ones, so a slow client loses
+ * intermediate updates but never blocks the writers.
+ */
+public class Watcher {
+
+  /** An update delivered to a watcher. */
+  public static class Update {
+    public final long timestamp;
+    public final String json;
+
+    Update(long timestamp, String json) {
+      this.timestamp = timestamp;
+      this.json = json;
+    }
+  }
+
+  private final String soId;
+  private final String streamId;
+  private final BlockingQueue<Update> pending;
+
+  Watcher(String soId, String streamId, int capacity) {
+    this.soId = soId;
+    this.streamId = streamId;
+    this.pending = new ArrayBlockingQueue<Update>(Math.max(1, capacity));
+  }
+
+  void offer(Update update) {
+    while (!pending.offer(update))
+      pending.poll();
+  }
+
+  /** @return the next update, or null if none arrives within the timeout */
+  public Update next(long timeout) throws InterruptedException {
+    return pending.poll(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  String getSoId() {
+    return soId;
+  }
+
+  String getStreamId() {
+    return streamId;
+  }
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.live;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+
+/**
+ * Unregisters the watcher of a request when the request ends, also when the
+ * client disconnects before its events start to be written.
+ */
+public class WatcherCleanup implements ServletRequestListener {
+
+  static final String ATTRIBUTE = Watcher.class.getName();
+
+  @Override
+  public void requestInitialized(ServletRequestEvent sre) {
+  }
+
+  @Override
+  public void requestDestroyed(ServletRequestEvent sre) {
+    Object watcher = sre.getServletRequest().getAttribute(ATTRIBUTE);
+    if (watcher instanceof Watcher)
+      LiveUpdates.unwatch((Watcher) watcher);
+  }
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: eight buckets per power
+ * of two of microseconds, so any value is reported with an error below 12.5%.
+ * Recording is a few atomic increments and does not allocate.
+ *
+ * The counts are cumulative since the recorder was created. They are exported
+ * as a histogram with a bucket per power of two of microseconds, so that the
+ * monitoring system computes the quantiles of any window from their rates;
+ * getQuantile is only meaningful over a bounded run, like a load test.
+ */
+public class LatencyRecorder {
+
+  private static final int SUB_BUCKETS = 8;
+  private static final int SUB_BITS = 3;
+  // Up to 2^40 us, about 12 days
+  private static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMicros = new AtomicLong();
+  // Responses by HTTP status, for the statuses >= 400
+  private final AtomicLongArray errors = new AtomicLongArray(600);
+
+  public LatencyRecorder(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Record the time elapsed since start, a System.nanoTime() value. */
+  public void recordSince(long start) {
+    record((System.nanoTime() - start) / 1000);
+  }
+
+  public void record(long micros) {
+    if (micros < 0)
+      micros = 0;
+    buckets.incrementAndGet(bucket(micros));
+    count.incrementAndGet();
+    sumMicros.addAndGet(micros);
+  }
+
+  public void recordError(int status) {
+    if (status >= 400 && status < errors.length())
+      errors.incrementAndGet(status);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSumMicros() {
+    return sumMicros.get();
+  }
+
+  public long getErrors(int status) {
+    return status < 0 || status >= errors.length() ? 0 : errors.get(status);
+  }
+
+  /**
+   * Cumulative counts for the powers of two of microseconds from 2^minExp to
+   * 2^maxExp: element k counts the values below 2^(minExp + k) microseconds.
+   * The last element, one more, counts all the values.
+   */
+  public long[] getCumulativeCounts(int minExp, int maxExp) {
+    long[] counts = new long[maxExp - minExp + 2];
+    long seen = 0;
+    int i = 0;
+    for (int k = 0; k <= maxExp - minExp; k++) {
+      int end = Math.min(BUCKETS, bucket(1L << (minExp + k)));
+      for (; i < end; i++)
+        seen += buckets.get(i);
+      counts[k] = seen;
+    }
+    for (; i < BUCKETS; i++)
+      seen += buckets.get(i);
+    counts[counts.length - 1] = seen;
+    return counts;
+  }
+
+  /** @return the upper bound in microseconds of the bucket holding the quantile */
+  public long getQuantile(double quantile) {
+    long total = count.get();
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank)
+        return upperBound(i);
+    }
+    return upperBound(BUCKETS - 1);
+  }
+
+  static int bucket(long micros) {
+    if (micros < SUB_BUCKETS)
+      return (int) micros;
+    int exp = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    int index = (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    return Math.min(index, BUCKETS - 1);
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+  }
+}
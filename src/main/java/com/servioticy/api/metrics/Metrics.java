@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.metrics;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency recorders of the endpoints and of the backend calls. The recorders
+ * are created on first use; hot paths keep a reference to theirs so that
+ * recording needs no lookup.
+ */
+public class Metrics {
+
+  private static final ConcurrentMap<String, LatencyRecorder> endpoints =
+      new ConcurrentHashMap<String, LatencyRecorder>();
+  private static final ConcurrentMap<String, LatencyRecorder> backends =
+      new ConcurrentHashMap<String, LatencyRecorder>();
+
+  public static LatencyRecorder endpoint(String name) {
+    return get(endpoints, name);
+  }
+
+  public static LatencyRecorder backend(String name) {
+    return get(backends, name);
+  }
+
+  public static Collection<LatencyRecorder> getEndpoints() {
+    return endpoints.values();
+  }
+
+  public static Collection<LatencyRecorder> getBackends() {
+    return backends.values();
+  }
+
+  private static LatencyRecorder get(ConcurrentMap<String, LatencyRecorder> recorders, String name) {
+    LatencyRecorder recorder = recorders.get(name);
+    if (recorder == null) {
+      LatencyRecorder created = new LatencyRecorder(name);
+      recorder = recorders.putIfAbsent(name, created);
+      if (recorder == null)
+        recorder = created;
+    }
+    return recorder;
+  }
+}
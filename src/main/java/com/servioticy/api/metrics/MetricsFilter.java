@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.metrics;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+/**
+ * Measures every request from the first request filter to the response,
+ * including the errors thrown as ServIoTWebApplicationException. The endpoint
+ * is tagged on the request by MetricsResourceFilterFactory once the resource
+ * method is matched.
+ *
+ * Jersey runs the filters of a request on the thread that handles it, so the
+ * measure is kept in a holder per thread, reused by all its requests, and
+ * nothing is allocated per request.
+ */
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+  private static class Timing {
+    long start;
+    LatencyRecorder endpoint;
+  }
+
+  private static final ThreadLocal<Timing> timing = new ThreadLocal<Timing>() {
+    @Override
+    protected Timing initialValue() {
+      return new Timing();
+    }
+  };
+
+  /** Tag the request being handled by this thread with the recorder of its endpoint. */
+  static void tag(LatencyRecorder endpoint) {
+    timing.get().endpoint = endpoint;
+  }
+
+  @Override
+  public ContainerRequest filter(ContainerRequest request) {
+    Timing t = timing.get();
+    t.start = System.nanoTime();
+    t.endpoint = null;
+    return request;
+  }
+
+  @Override
+  public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+    Timing t = timing.get();
+    LatencyRecorder recorder = t.endpoint;
+    if (recorder != null) {
+      recorder.recordSince(t.start);
+      recorder.recordError(response.getStatus());
+      t.endpoint = null;
+    }
+    return response;
+  }
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.metrics;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.jersey.api.model.AbstractMethod;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ResourceFilter;
+import com.sun.jersey.spi.container.ResourceFilterFactory;
+
+/**
+ * Tags each request with the latency recorder of the resource method that
+ * handles it. The recorder is resolved once, when the method is registered.
+ */
+public class MetricsResourceFilterFactory implements ResourceFilterFactory {
+
+  @Override
+  public List<ResourceFilter> create(AbstractMethod am) {
+    if (am.getMethod() == null)
+      return null;
+    final LatencyRecorder recorder = Metrics.endpoint(am.getMethod().getName());
+
+    final ContainerRequestFilter tag = new ContainerRequestFilter() {
+      @Override
+      public ContainerRequest filter(ContainerRequest request) {
+        MetricsFilter.tag(recorder);
+        return request;
+      }
+    };
+
+    return Collections.<ResourceFilter>singletonList(new ResourceFilter() {
+      @Override
+      public ContainerRequestFilter getRequestFilter() {
+        return tag;
+      }
+
+      @Override
+      public ContainerResponseFilter getResponseFilter() {
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circuit breaker around the calls to a backend. After failureThreshold
+ * consecutive failures it opens and the calls are not attempted for
+ * openTime milliseconds; then a single trial call is let through, and it
+ * closes again if the trial succeeds.
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final int failureThreshold;
+  private final long openTime;
+
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicBoolean trial = new AtomicBoolean();
+  private volatile long openedAt = -1;
+
+  public CircuitBreaker(int failureThreshold, long openTime) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openTime = openTime;
+  }
+
+  /** @return true if the call can be attempted, in that case its result must be recorded */
+  public boolean allowRequest() {
+    if (openedAt < 0)
+      return true;
+    if (System.currentTimeMillis() - openedAt < openTime)
+      return false;
+    // Half open, only one trial at a time
+    return trial.compareAndSet(false, true);
+  }
+
+  public void recordSuccess() {
+    failures.set(0);
+    openedAt = -1;
+    trial.set(false);
+  }
+
+  public void recordFailure() {
+    if (openedAt >= 0 || failures.incrementAndGet() >= failureThreshold)
+      openedAt = System.currentTimeMillis();
+    trial.set(false);
+  }
+
+  public State getState() {
+    if (openedAt < 0)
+      return State.CLOSED;
+    return System.currentTimeMillis() - openedAt < openTime ? State.OPEN : State.HALF_OPEN;
+  }
+}
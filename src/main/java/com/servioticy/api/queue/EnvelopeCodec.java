@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+/**
+ * Builds the messages put in the queues. The sensor update and the action are
+ * JSON documents that are embedded as they are in the envelope.
+ *
+ * JSON envelopes are written without header, as they always were. Binary
+ * envelopes start with the VERSION byte and a format byte, which can never be
+ * the first byte of a JSON document, so consumers can tell them apart.
+ */
+public interface EnvelopeCodec {
+
+  /** Version of the binary envelope header, written before the payload of binary formats. */
+  byte VERSION = 1;
+
+  /** @return the message for the services queue */
+  Object encodeUpdate(String opId, String soId, String streamId, String su);
+
+  /** @return the message for the actions queue */
+  Object encodeActuation(String soId, String id, String name, String action);
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Selects the envelope codec of the queue messages with queue_codec in
+ * config.properties: json (default) or smile.
+ */
+public class Envelopes {
+
+  static final JsonFactory JSON = new JsonFactory();
+
+  private static final EnvelopeCodec codec = create(ApiConfig.getString("queue_codec", "json"));
+
+  static EnvelopeCodec create(String format) {
+    if ("smile".equalsIgnoreCase(format))
+      return new SmileEnvelopeCodec();
+    return new JsonEnvelopeCodec();
+  }
+
+  public static EnvelopeCodec codec() {
+    return codec;
+  }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+/**
+ * Plain JSON envelopes, the format the processing topology has always read.
+ * The envelope is built in a per-thread buffer that is reused between
+ * messages.
+ */
+public class JsonEnvelopeCodec implements EnvelopeCodec {
+
+  private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(1024);
+    }
+  };
+
+  @Override
+  public Object encodeUpdate(String opId, String soId, String streamId, String su) {
+    StringBuilder sb = buffer();
+    sb.append("{\"opid\": ");
+    quote(sb, opId);
+    sb.append(", \"soid\": ");
+    quote(sb, soId);
+    sb.append(", \"streamid\": ");
+    quote(sb, streamId);
+    sb.append(", \"su\": ").append(su).append('}');
+    return sb.toString();
+  }
+
+  @Override
+  public Object encodeActuation(String soId, String id, String name, String action) {
+    StringBuilder sb = buffer();
+    sb.append("{\"soid\": ");
+    quote(sb, soId);
+    sb.append(", \"id\": ");
+    quote(sb, id);
+    sb.append(", \"name\": ");
+    quote(sb, name);
+    sb.append(", \"action\": ").append(action).append('}');
+    return sb.toString();
+  }
+
+  private static StringBuilder buffer() {
+    StringBuilder sb = buffers.get();
+    // Do not keep around the buffers grown by huge messages
+    if (sb.capacity() > 65536) {
+      sb = new StringBuilder(1024);
+      buffers.set(sb);
+    }
+    sb.setLength(0);
+    return sb;
+  }
+
+  private static void quote(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        default:
+          if (c < 0x20)
+            sb.append(String.format("\\u%04x", (int) c));
+          else
+            sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
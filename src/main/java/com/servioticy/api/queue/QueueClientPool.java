@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.servioticy.api.metrics.LatencyRecorder;
+import com.servioticy.api.metrics.Metrics;
+import com.servioticy.queueclient.QueueClient;
+import com.servioticy.queueclient.QueueClientException;
+
+/**
+ * Fixed size pool of connected QueueClient instances.
+ *
+ * Clients are created and connected once and then borrowed for each put. A
+ * client that fails a put is disconnected and replaced, and a periodic health
+ * check reopens the connections that could not be recreated at that moment.
+ */
+public class QueueClientPool {
+
+  private static final Logger LOG = Logger.getLogger(QueueClientPool.class.getName());
+
+  /** Creates new, already connected, clients for the pool. */
+  public interface ClientFactory {
+    QueueClient create() throws QueueClientException;
+  }
+
+  private final String name;
+  private final ClientFactory factory;
+  private final int size;
+  private final long borrowTimeout;
+
+  private final LinkedBlockingQueue<QueueClient> idle = new LinkedBlockingQueue<QueueClient>();
+  // Clients created and not yet discarded, both idle and borrowed
+  private final AtomicInteger open = new AtomicInteger();
+  private final ScheduledExecutorService checker;
+  private volatile boolean closed = false;
+
+  private final LatencyRecorder puts;
+  private final LatencyRecorder connects;
+
+  /**
+   * @param name           name used for logging and the health check thread
+   * @param factory        creates connected clients
+   * @param size           maximum number of connections
+   * @param borrowTimeout  milliseconds to wait for a free client
+   * @param checkInterval  milliseconds between health checks, 0 to disable
+   */
+  public QueueClientPool(String name, ClientFactory factory, int size, long borrowTimeout,
+                         long checkInterval) {
+    this.name = name;
+    this.factory = factory;
+    this.size = Math.max(1, size);
+    this.borrowTimeout = borrowTimeout;
+    this.puts = Metrics.backend("queue.put." + name);
+    this.connects = Metrics.backend("queue.connect." + name);
+
+    fill();
+
+    if (checkInterval > 0) {
+      checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "queue-pool-" + QueueClientPool.this.name);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      checker.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          fill();
+        }
+      }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    } else {
+      checker = null;
+    }
+  }
+
+  /** Factory that builds the clients from a queue-client XML configuration file. */
+  public static ClientFactory xmlFactory(final String configFile) {
+    return new ClientFactory() {
+      @Override
+      public QueueClient create() throws QueueClientException {
+        QueueClient client = QueueClient.factory(configFile);
+        client.connect();
+        return client;
+      }
+    };
+  }
+
+  /**
+   * Put a message in the queue using a pooled client. If the put fails the
+   * client is replaced and the put is retried once with a fresh connection.
+   *
+   * @return the result of the put in the queue
+   */
+  public boolean put(Object message) throws QueueClientException, PoolTimeoutException {
+    QueueClient client = borrow();
+    if (putQuietly(client, message)) {
+      release(client);
+      return true;
+    }
+
+    // The connection is probably broken, retry with a new one
+    invalidate(client);
+    client = create();
+    if (client == null)
+      client = borrow();
+    boolean res;
+    long start = System.nanoTime();
+    try {
+      res = client.put(message);
+    } catch (RuntimeException e) {
+      invalidate(client);
+      throw e;
+    } finally {
+      puts.recordSince(start);
+    }
+    if (res)
+      release(client);
+    else
+      invalidate(client);
+    return res;
+  }
+
+  /**
+   * Put several messages through a single pooled client, so that they are
+   * pipelined over the same connection. A failed put is retried once on a new
+   * connection. If no client can be had part-way through, the rest of the
+   * messages are not put and their results are false, the ones already put
+   * are still reported as put.
+   *
+   * @return for each message, the result of the put in the queue
+   * @throws PoolTimeoutException if no client is available for the first message
+   */
+  public boolean[] putAll(List<?> messages) throws QueueClientException, PoolTimeoutException {
+    boolean[] results = new boolean[messages.size()];
+    if (messages.isEmpty())
+      return results;
+
+    QueueClient client = borrow();
+    try {
+      for (int i = 0; i < results.length; i++) {
+        results[i] = putQuietly(client, messages.get(i));
+        if (!results[i]) {
+          invalidate(client);
+          client = null;
+          client = borrow();
+          results[i] = putQuietly(client, messages.get(i));
+          if (!results[i]) {
+            invalidate(client);
+            client = null;
+            client = borrow();
+          }
+        }
+      }
+    } catch (PoolTimeoutException e) {
+      LOG.log(Level.FINE, "No queue client in pool " + name + " to finish a batch", e);
+    } catch (QueueClientException e) {
+      LOG.log(Level.FINE, "No queue client in pool " + name + " to finish a batch", e);
+    } finally {
+      if (client != null)
+        release(client);
+    }
+    return results;
+  }
+
+  private boolean putQuietly(QueueClient client, Object message) {
+    long start = System.nanoTime();
+    try {
+      return client.put(message);
+    } catch (RuntimeException e) {
+      LOG.log(Level.FINE, "Put failed in queue pool " + name, e);
+      return false;
+    } finally {
+      puts.recordSince(start);
+    }
+  }
+
+  /** Take a client from the pool, waiting at most the borrow timeout. */
+  public QueueClient borrow() throws QueueClientException, PoolTimeoutException {
+    if (closed)
+      throw new PoolTimeoutException("The queue pool " + name + " is closed");
+
+    QueueClient client = idle.poll();
+    if (client != null)
+      return client;
+
+    client = create();
+    if (client != null)
+      return client;
+
+    try {
+      client = idle.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (client == null)
+      throw new PoolTimeoutException("No queue client available in pool " + name +
+          " after " + borrowTimeout + " ms");
+    return client;
+  }
+
+  /** Give back a healthy client. */
+  public void release(QueueClient client) {
+    if (closed) {
+      invalidate(client);
+      return;
+    }
+    idle.offer(client);
+  }
+
+  /** Discard a client that has failed. Its slot is refilled on demand or by the health check. */
+  public void invalidate(QueueClient client) {
+    open.decrementAndGet();
+    disconnect(client);
+  }
+
+  /** Number of clients that can be borrowed without waiting. */
+  public int available() {
+    return idle.size() + Math.max(0, size - open.get());
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public void close() {
+    closed = true;
+    if (checker != null)
+      checker.shutdownNow();
+    QueueClient client;
+    while ((client = idle.poll()) != null)
+      invalidate(client);
+  }
+
+  /**
+   * Create a new connected client if the pool is not full.
+   *
+   * @return the client, or null if the pool is full
+   */
+  private QueueClient create() throws QueueClientException {
+    if (open.incrementAndGet() > size) {
+      open.decrementAndGet();
+      return null;
+    }
+    long start = System.nanoTime();
+    try {
+      return factory.create();
+    } catch (QueueClientException e) {
+      open.decrementAndGet();
+      throw e;
+    } catch (RuntimeException e) {
+      open.decrementAndGet();
+      throw e;
+    } finally {
+      connects.recordSince(start);
+    }
+  }
+
+  // Health check, reopen the connections that are missing
+  private void fill() {
+    while (!closed) {
+      try {
+        QueueClient client = create();
+        if (client == null)
+          return;
+        release(client);
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to connect queue client for pool " + name + ": " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  private void disconnect(QueueClient client) {
+    try {
+      client.disconnect();
+    } catch (Exception e) {
+      // Already broken
+    }
+  }
+}
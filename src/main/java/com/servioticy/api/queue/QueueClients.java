@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import com.servioticy.api.utils.ApiConfig;
+
+/**
+ * Shared queue client pools, one for the sensor updates queue and one for the
+ * actuations queue. They are opened when the webapp starts.
+ */
+public class QueueClients {
+
+  private static volatile QueueClientPool updates;
+  private static volatile QueueClientPool actions;
+
+  public static synchronized void init() {
+    int size = ApiConfig.getInt("queue_pool_size", 8);
+    long borrowTimeout = ApiConfig.getLong("queue_borrow_timeout", 1000);
+    long checkInterval = ApiConfig.getLong("queue_check_interval", 30000);
+
+    if (updates == null)
+      updates = new QueueClientPool("updates", QueueClientPool.xmlFactory("default.xml"),
+          size, borrowTimeout, checkInterval);
+    if (actions == null)
+      actions = new QueueClientPool("actions", QueueClientPool.xmlFactory("defaultActions.xml"),
+          ApiConfig.getInt("actions_pool_size", size), borrowTimeout, checkInterval);
+  }
+
+  public static synchronized void shutdown() {
+    if (updates != null)
+      updates.close();
+    if (actions != null)
+      actions.close();
+    updates = null;
+    actions = null;
+  }
+
+  /** Pool connected to the sensor updates queue (default.xml). */
+  public static QueueClientPool updates() {
+    if (updates == null)
+      init();
+    return updates;
+  }
+
+  /** Pool connected to the actuations queue (defaultActions.xml). */
+  public static QueueClientPool actions() {
+    if (actions == null)
+      init();
+    return actions;
+  }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Binary envelopes in Smile, the binary JSON format of Jackson.
+ *
+ * Every message starts with two header bytes, the envelope version and the
+ * format (FORMAT_SMILE), followed by the Smile document with the same fields
+ * as the JSON envelope. The embedded document is copied token by token from
+ * the request body, without building it as a tree.
+ */
+public class SmileEnvelopeCodec implements EnvelopeCodec {
+
+  public static final byte FORMAT_SMILE = 2;
+
+  private static final SmileFactory factory = new SmileFactory();
+
+  private static final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+    @Override
+    protected ByteArrayOutputStream initialValue() {
+      return new ByteArrayOutputStream(1024);
+    }
+  };
+
+  @Override
+  public Object encodeUpdate(String opId, String soId, String streamId, String su) {
+    try {
+      ByteArrayOutputStream out = buffer();
+      JsonGenerator generator = factory.createGenerator(out);
+      generator.writeStartObject();
+      generator.writeStringField("opid", opId);
+      generator.writeStringField("soid", soId);
+      generator.writeStringField("streamid", streamId);
+      generator.writeFieldName("su");
+      copy(su, generator);
+      generator.writeEndObject();
+      generator.close();
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to encode the sensor update", e);
+    }
+  }
+
+  @Override
+  public Object encodeActuation(String soId, String id, String name, String action) {
+    try {
+      ByteArrayOutputStream out = buffer();
+      JsonGenerator generator = factory.createGenerator(out);
+      generator.writeStartObject();
+      generator.writeStringField("soid", soId);
+      generator.writeStringField("id", id);
+      generator.writeStringField("name", name);
+      generator.writeFieldName("action");
+      copy(action, generator);
+      generator.writeEndObject();
+      generator.close();
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to encode the actuation", e);
+    }
+  }
+
+  private static ByteArrayOutputStream buffer() {
+    ByteArrayOutputStream out = buffers.get();
+    // Do not keep around the buffers grown by huge messages
+    if (out.size() > 65536) {
+      out = new ByteArrayOutputStream(1024);
+      buffers.set(out);
+    }
+    out.reset();
+    out.write(VERSION);
+    out.write(FORMAT_SMILE);
+    return out;
+  }
+
+  private static void copy(String json, JsonGenerator generator) throws IOException {
+    JsonParser parser = Envelopes.JSON.createParser(json);
+    try {
+      parser.nextToken();
+      generator.copyCurrentStructure(parser);
+    } finally {
+      parser.close();
+    }
+  }
+}
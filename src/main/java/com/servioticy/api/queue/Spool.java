@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only spool of queue messages on memory-mapped segment files.
+ *
+ * Each segment starts with the offset of its first record not yet taken,
+ * followed by the records: length, CRC32, type (String or byte[]) and
+ * payload. The mapped pages survive a crash of the JVM, and a restart
+ * replays every record after the stored offset, up to the first empty or
+ * torn record of each segment. The disk used is bounded by maxSegments
+ * segments of segmentSize bytes; when they are full, appends are refused.
+ */
+public class Spool {
+
+  private static final Logger LOG = Logger.getLogger(Spool.class.getName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int HEADER = 8;
+  private static final int RECORD_HEADER = 9;
+  private static final byte STRING = 0;
+  private static final byte BYTES = 1;
+
+  private static class Segment {
+    final File file;
+    final MappedByteBuffer buffer;
+    int readOffset;
+    int writeOffset;
+
+    Segment(File file, int size) throws IOException {
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  private final File dir;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final boolean sync;
+
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private long sequence;
+  private long pending;
+
+  /**
+   * Open the spool in a directory, recovering the records left by a previous run.
+   *
+   * @param sync force every append to the disk, otherwise they are written by the OS
+   */
+  public Spool(File dir, int segmentSize, int maxSegments, boolean sync) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxSegments = Math.max(1, maxSegments);
+    this.sync = sync;
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Unable to create the spool directory " + dir);
+    recover();
+  }
+
+  private void recover() throws IOException {
+    File[] files = dir.listFiles();
+    List<String> names = new ArrayList<String>();
+    if (files != null)
+      for (File f : files)
+        if (f.getName().startsWith("spool-") && f.getName().endsWith(".dat"))
+          names.add(f.getName());
+    String[] sorted = names.toArray(new String[names.size()]);
+    Arrays.sort(sorted);
+
+    for (String name : sorted) {
+      File file = new File(dir, name);
+      sequence = Math.max(sequence, Long.parseLong(name.substring(6, name.length() - 4)) + 1);
+      Segment segment = new Segment(file, (int) Math.max(file.length(), segmentSize));
+      segment.readOffset = Math.max(HEADER, (int) segment.buffer.getLong(0));
+      int offset = segment.readOffset;
+      int records = 0;
+      int length;
+      while ((length = validRecord(segment, offset)) > 0) {
+        offset += RECORD_HEADER + length;
+        records++;
+      }
+      segment.writeOffset = offset;
+      if (records == 0) {
+        delete(segment);
+        continue;
+      }
+      pending += records;
+      segments.add(segment);
+    }
+    if (pending > 0)
+      LOG.info("Recovered " + pending + " spooled queue messages from " + dir);
+  }
+
+  // Length of the payload of the record at the offset, or 0 if there is none
+  private int validRecord(Segment segment, int offset) {
+    MappedByteBuffer buffer = segment.buffer;
+    if (offset + RECORD_HEADER > buffer.capacity())
+      return 0;
+    int length = buffer.getInt(offset);
+    if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity())
+      return 0;
+    byte[] payload = new byte[length];
+    read(buffer, offset + RECORD_HEADER, payload);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.get(offset + 8));
+    crc.update(payload);
+    return (int) crc.getValue() == buffer.getInt(offset + 4) ? length : 0;
+  }
+
+  /**
+   * Append a message, a String or a byte array.
+   *
+   * @return false if the spool is full
+   */
+  public synchronized boolean append(Object message) throws IOException {
+    byte type = message instanceof byte[] ? BYTES : STRING;
+    byte[] payload = type == BYTES ? (byte[]) message : message.toString().getBytes(UTF8);
+    int size = RECORD_HEADER + payload.length;
+    if (size > segmentSize - HEADER)
+      return false;
+
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.writeOffset + size > segmentSize) {
+      if (segments.size() >= maxSegments)
+        return false;
+      segment = newSegment();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload);
+    MappedByteBuffer buffer = segment.buffer;
+    int offset = segment.writeOffset;
+    buffer.putInt(offset + 4, (int) crc.getValue());
+    buffer.put(offset + 8, type);
+    write(buffer, offset + RECORD_HEADER, payload);
+    // The length goes last, a torn record is not replayed
+    buffer.putInt(offset, payload.length);
+    segment.writeOffset = offset + size;
+    if (sync)
+      buffer.force();
+    pending++;
+    return true;
+  }
+
+  /** @return the oldest message, or null if the spool is empty */
+  public synchronized Object peek() {
+    Segment segment = first();
+    if (segment == null)
+      return null;
+    int offset = segment.readOffset;
+    int length = segment.buffer.getInt(offset);
+    byte[] payload = new byte[length];
+    read(segment.buffer, offset + RECORD_HEADER, payload);
+    return segment.buffer.get(offset + 8) == BYTES ? payload : new String(payload, UTF8);
+  }
+
+  /** Drop the oldest message, once it has been delivered. */
+  public synchronized void remove() {
+    Segment segment = first();
+    if (segment == null)
+      return;
+    segment.readOffset += RECORD_HEADER + segment.buffer.getInt(segment.readOffset);
+    segment.buffer.putLong(0, segment.readOffset);
+    if (sync)
+      segment.buffer.force();
+    pending--;
+  }
+
+  // First segment with records to read, the drained ones are deleted
+  private Segment first() {
+    while (!segments.isEmpty()) {
+      Segment segment = segments.getFirst();
+      if (segment.readOffset < segment.writeOffset)
+        return segment;
+      if (segments.size() == 1)
+        return null;
+      segments.removeFirst();
+      delete(segment);
+    }
+    return null;
+  }
+
+  public synchronized long getPending() {
+    return pending;
+  }
+
+  /** Write the spooled records to the disk. */
+  public synchronized void force() {
+    for (Segment segment : segments)
+      segment.buffer.force();
+  }
+
+  private Segment newSegment() throws IOException {
+    File file = new File(dir, String.format("spool-%019d.dat", sequence++));
+    Segment segment = new Segment(file, segmentSize);
+    segment.readOffset = HEADER;
+    segment.writeOffset = HEADER;
+    segment.buffer.putLong(0, HEADER);
+    segments.add(segment);
+    return segment;
+  }
+
+  private void delete(Segment segment) {
+    if (!segment.file.delete())
+      LOG.warning("Unable to delete the spool segment " + segment.file);
+  }
+
+  private static void read(MappedByteBuffer buffer, int offset, byte[] dst) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.get(dst);
+  }
+
+  private static void write(MappedByteBuffer buffer, int offset, byte[] src) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.put(src);
+  }
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.servioticy.api.utils.ApiConfig;
+import com.servioticy.api.utils.Backend;
+
+/**
+ * Puts of the sensor updates queue that survive an outage of the queue.
+ *
+ * The puts go through a circuit breaker. While it is open, or when a put
+ * fails, the messages are appended to a local Spool instead, and a
+ * background thread delivers them to the queue once it accepts puts again.
+ * A put slower than queue_breaker_slow milliseconds counts as a failure, so
+ * the request latency does not follow a slow queue either. The requests
+ * start their puts with submit and wait at most that long for them: a put
+ * that does not complete in time counts as a failure as well, so that a
+ * queue that hangs opens the breaker as soon as one that fails, and it goes
+ * on in the background until it is queued or spooled.
+ *
+ * The spooled messages are delivered in order among themselves, but after
+ * the puts made directly once the queue is back.
+ */
+public class SpooledQueue {
+
+  private static final Logger LOG = Logger.getLogger(SpooledQueue.class.getName());
+
+  private static CircuitBreaker breaker;
+  private static Spool spool;
+  private static Thread drainer;
+  private static volatile boolean running;
+
+  /** Start a put on the backend executor, so that it runs while the request stores the update. */
+  public static Future<Boolean> submit(final Object message) {
+    return Backend.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return put(message);
+      }
+    });
+  }
+
+  /** Start a putAll on the backend executor. */
+  public static Future<boolean[]> submitAll(final List<?> messages) {
+    return Backend.submit(new Callable<boolean[]>() {
+      @Override
+      public boolean[] call() {
+        return putAll(messages);
+      }
+    });
+  }
+
+  /**
+   * Wait for a put started with submit or submitAll, at most
+   * queue_breaker_slow milliseconds.
+   *
+   * @return the result of the put, or null if it did not complete in time
+   */
+  public static <T> T await(Future<T> put) {
+    T result = Backend.poll(put, ApiConfig.getLong("queue_breaker_slow", 1000));
+    if (result == null)
+      breaker().recordFailure();
+    return result;
+  }
+
+  public static synchronized void init() {
+    if (breaker != null)
+      return;
+    breaker = new CircuitBreaker(ApiConfig.getInt("queue_breaker_failures", 5),
+        ApiConfig.getLong("queue_breaker_open", 5000));
+    // Not in the temporary directory, that may be emptied on reboot
+    File dir = new File(ApiConfig.getString("spool_dir",
+        new File(System.getProperty("user.home"), ".servioticy/spool").getPath()));
+    try {
+      spool = new Spool(dir, ApiConfig.getInt("spool_segment_size", 64 * 1024 * 1024),
+          ApiConfig.getInt("spool_max_segments", 16), ApiConfig.getBoolean("spool_sync", false));
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Unable to open the queue spool in " + dir + ", updates are not spooled", e);
+      spool = null;
+    }
+    startDrainer();
+  }
+
+  public static synchronized void shutdown() {
+    running = false;
+    if (drainer != null)
+      drainer.interrupt();
+    drainer = null;
+    if (spool != null)
+      spool.force();
+    spool = null;
+    breaker = null;
+  }
+
+  private static CircuitBreaker breaker() {
+    if (breaker == null)
+      init();
+    return breaker;
+  }
+
+  /**
+   * Put a message in the updates queue, or in the spool if the queue is not
+   * available.
+   *
+   * @return false if the message could neither be queued nor spooled
+   */
+  public static boolean put(Object message) {
+    CircuitBreaker cb = breaker();
+    if (cb.allowRequest() && putDirect(cb, message))
+      return true;
+    return spool(message);
+  }
+
+  /**
+   * Put several messages, pipelined through one connection, spooling the ones
+   * that could not be queued.
+   *
+   * @return for each message, false if it could neither be queued nor spooled
+   */
+  public static boolean[] putAll(List<?> messages) {
+    CircuitBreaker cb = breaker();
+    boolean[] results = new boolean[messages.size()];
+    if (cb.allowRequest()) {
+      long start = System.currentTimeMillis();
+      try {
+        results = QueueClients.updates().putAll(messages);
+        boolean ok = true;
+        for (boolean result : results)
+          ok &= result;
+        record(cb, ok, start);
+      } catch (Exception e) {
+        cb.recordFailure();
+      }
+    }
+    for (int i = 0; i < results.length; i++)
+      if (!results[i])
+        results[i] = spool(messages.get(i));
+    return results;
+  }
+
+  private static boolean putDirect(CircuitBreaker cb, Object message) {
+    long start = System.currentTimeMillis();
+    boolean ok = false;
+    try {
+      ok = QueueClients.updates().put(message);
+      return ok;
+    } catch (Exception e) {
+      LOG.log(Level.FINE, "Put in the updates queue failed", e);
+      return false;
+    } finally {
+      record(cb, ok, start);
+    }
+  }
+
+  private static void record(CircuitBreaker cb, boolean ok, long start) {
+    if (ok && System.currentTimeMillis() - start <= ApiConfig.getLong("queue_breaker_slow", 1000))
+      cb.recordSuccess();
+    else
+      cb.recordFailure();
+  }
+
+  private static boolean spool(Object message) {
+    Spool s = spool;
+    if (s == null)
+      return false;
+    try {
+      if (!s.append(message)) {
+        LOG.warning("The queue spool is full, message dropped");
+        return false;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to spool a queue message", e);
+      return false;
+    }
+    synchronized (SpooledQueue.class) {
+      SpooledQueue.class.notifyAll();
+    }
+    return true;
+  }
+
+  private static synchronized void startDrainer() {
+    if (spool == null || drainer != null)
+      return;
+    running = true;
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long interval = ApiConfig.getLong("spool_drain_interval", 500);
+        while (running) {
+          try {
+            drain();
+            synchronized (SpooledQueue.class) {
+              SpooledQueue.class.wait(interval);
+            }
+          } catch (InterruptedException e) {
+            return;
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Spool drain failed", e);
+          }
+        }
+      }
+    }, "queue-spool-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  // Deliver the spooled messages while the queue accepts them
+  private static void drain() {
+    Spool s = spool;
+    CircuitBreaker cb = breaker;
+    if (s == null || cb == null)
+      return;
+    Object message;
+    while (running && (message = s.peek()) != null) {
+      if (!cb.allowRequest() || !putDirect(cb, message))
+        return;
+      s.remove();
+    }
+  }
+
+  /** Number of messages waiting in the spool. */
+  public static long getSpooled() {
+    Spool s = spool;
+    return s == null ? 0 : s.getPending();
+  }
+
+  public static CircuitBreaker.State getState() {
+    CircuitBreaker cb = breaker;
+    return cb == null ? CircuitBreaker.State.CLOSED : cb.getState();
+  }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settings of the public API read from config.properties. Everything that is
+ * shared with the rest of servIoTicy lives in commons' Config; this class only
+ * holds the tuning knobs that belong to this webapp.
+ *
+ * The file is checked for changes every config_reload_interval milliseconds
+ * and reloaded when it has been modified, so that the settings read on each
+ * request (e.g. the rate limits) can be changed without a redeploy.
+ */
+public class ApiConfig {
+
+  private static final String CONFIG_FILE = "config.properties";
+
+  private static final AtomicInteger version = new AtomicInteger();
+  private static volatile long lastModified = lastModified();
+  private static volatile Properties properties = load();
+  private static volatile long nextCheck = System.currentTimeMillis() + reloadInterval();
+
+  private static Properties load() {
+    Properties props = new Properties();
+    InputStream in = ApiConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE);
+    if (in == null)
+      return props;
+    try {
+      props.load(in);
+    } catch (IOException e) {
+      // Keep the defaults
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+    return props;
+  }
+
+  private static long lastModified() {
+    URL url = ApiConfig.class.getClassLoader().getResource(CONFIG_FILE);
+    if (url == null)
+      return 0;
+    try {
+      URLConnection conn = url.openConnection();
+      conn.setUseCaches(false);
+      long modified = conn.getLastModified();
+      conn.getInputStream().close();
+      return modified;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static long reloadInterval() {
+    String value = properties == null ? null : properties.getProperty("config_reload_interval");
+    try {
+      return value == null ? 10000 : Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return 10000;
+    }
+  }
+
+  // Reload the file if it has changed since the last check
+  private static void checkReload() {
+    long now = System.currentTimeMillis();
+    if (now < nextCheck)
+      return;
+    synchronized (ApiConfig.class) {
+      if (now < nextCheck)
+        return;
+      long interval = reloadInterval();
+      // 0 disables reloading
+      nextCheck = interval > 0 ? now + interval : Long.MAX_VALUE;
+      long modified = lastModified();
+      if (modified != lastModified) {
+        lastModified = modified;
+        properties = load();
+        version.incrementAndGet();
+      }
+    }
+  }
+
+  /** Reload the settings now. */
+  public static synchronized void reload() {
+    lastModified = lastModified();
+    properties = load();
+    version.incrementAndGet();
+  }
+
+  /** Number of times the settings have been reloaded, to know when derived values must be rebuilt. */
+  public static int getVersion() {
+    checkReload();
+    return version.get();
+  }
+
+  public static String getString(String key, String defaultValue) {
+    checkReload();
+    String value = properties.getProperty(key);
+    if (value == null || value.trim().isEmpty())
+      return defaultValue;
+    return value.trim();
+  }
+
+  public static int getInt(String key, int defaultValue) {
+    try {
+      return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static long getLong(String key, long defaultValue) {
+    try {
+      return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static double getDouble(String key, double defaultValue) {
+    try {
+      return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+  }
+}
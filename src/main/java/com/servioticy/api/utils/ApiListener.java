@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.utils;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.servioticy.api.actuation.ActuationDispatcher;
+import com.servioticy.api.data.BulkCouchBase;
+import com.servioticy.api.data.WriteBehind;
+import com.servioticy.api.jobs.DeletionJobs;
+import com.servioticy.api.queue.QueueClients;
+import com.servioticy.api.queue.SpooledQueue;
+
+/**
+ * Opens and closes the long-lived resources of the public API together with
+ * the webapp.
+ */
+public class ApiListener implements ServletContextListener {
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    QueueClients.init();
+    SpooledQueue.init();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    ActuationDispatcher.shutdown(ApiConfig.getLong("actuation_shutdown", 5000));
+    SpooledQueue.shutdown();
+    QueueClients.shutdown();
+    WriteBehind.shutdown();
+    BulkCouchBase.shutdown();
+    DeletionJobs.shutdown();
+    Backend.shutdown();
+  }
+}
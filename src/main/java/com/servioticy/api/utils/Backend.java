@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.utils;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.Response;
+
+import com.servioticy.api.commons.exceptions.ServIoTWebApplicationException;
+
+/**
+ * Calls to Couchbase, Elasticsearch and the queues.
+ *
+ * Jersey 1 has no suspended responses, so the requests are served on the
+ * container thread from start to end and there is no asynchronous handling.
+ * Reads run on that thread too (call), bounded by the timeouts of their
+ * clients; only the calls that overlap with other work of the request, like
+ * the queue put of a sensor update while it is stored, go to this bounded
+ * executor (submit), and new ones are refused with a 503 when all its
+ * threads and its queue are busy.
+ */
+public class Backend {
+
+  private static volatile ThreadPoolExecutor executor;
+
+  private static ThreadPoolExecutor executor() {
+    if (executor == null) {
+      synchronized (Backend.class) {
+        if (executor == null) {
+          int threads = Math.max(1, ApiConfig.getInt("backend_threads", 64));
+          final AtomicInteger count = new AtomicInteger();
+          executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(Math.max(1, ApiConfig.getInt("backend_queue", 1024))),
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "backend-" + count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+          executor.allowCoreThreadTimeOut(true);
+        }
+      }
+    }
+    return executor;
+  }
+
+  public static synchronized void shutdown() {
+    if (executor != null)
+      executor.shutdownNow();
+    executor = null;
+  }
+
+  /** Milliseconds a request waits for a backend call. */
+  public static long getTimeout() {
+    return ApiConfig.getLong("backend_timeout", 10000);
+  }
+
+  /** Fraction of the queue of the executor that is taken by calls waiting for a thread. */
+  public static double getQueueUsage() {
+    ThreadPoolExecutor e = executor;
+    if (e == null)
+      return 0;
+    int queued = e.getQueue().size();
+    return (double) queued / (queued + e.getQueue().remainingCapacity());
+  }
+
+  /** Start a backend call. */
+  public static <T> Future<T> submit(Callable<T> task) {
+    try {
+      return executor().submit(task);
+    } catch (RejectedExecutionException e) {
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "The server is too busy, try again later");
+    }
+  }
+
+  /**
+   * Wait for a backend call with side effects, like a put in a queue, that
+   * must not be abandoned: if it takes longer than the timeout it goes on in
+   * the background and the request carries on without its result.
+   *
+   * @return the result, or null if the call did not complete in time
+   */
+  public static <T> T poll(Future<T> future, long timeout) {
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+          "Backend error " + e.getCause().getMessage());
+    }
+  }
+
+  /**
+   * Run a backend call on the request thread. Its time is bounded by the
+   * timeouts of the client, SearchHttp uses backend_timeout.
+   */
+  public static <T> T call(Callable<T> task) {
+    try {
+      return task.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (SocketTimeoutException e) {
+      throw new ServIoTWebApplicationException(Response.Status.SERVICE_UNAVAILABLE,
+          "Timeout waiting for the backend");
+    } catch (Exception e) {
+      throw new ServIoTWebApplicationException(Response.Status.INTERNAL_SERVER_ERROR,
+          "Backend error " + e.getMessage());
+    }
+  }
+}
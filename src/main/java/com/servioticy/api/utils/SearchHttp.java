@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2014 Barcelona Supercomputing Center (BSC)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.servioticy.api.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * Requests to the REST interface of the search servers (search_servers,
+ * search_http_port), spread over the servers in turn.
+ */
+public class SearchHttp {
+
+  /** Status and body of a response. */
+  public static class Reply {
+    private final int status;
+    private final JsonNode body;
+
+    Reply(int status, JsonNode body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public JsonNode getBody() {
+      return body;
+    }
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Send a request and read its JSON response, also for the error statuses.
+   *
+   * @param body the body of the request, or null
+   */
+  public static Reply send(String method, String path, String body) throws IOException {
+    String[] servers = ApiConfig.getString("search_servers", "127.0.0.1").split(",");
+    String server = servers[(next.getAndIncrement() & Integer.MAX_VALUE) % servers.length].trim();
+    URL url = new URL("http://" + server + ":" + ApiConfig.getInt("search_http_port", 9200) + path);
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    int timeout = (int) Backend.getTimeout();
+    conn.setConnectTimeout(timeout);
+    conn.setReadTimeout(timeout);
+    conn.setRequestMethod(method);
+    if (body != null) {
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type", "application/json");
+      OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body.getBytes(UTF8));
+      } finally {
+        out.close();
+      }
+    }
+
+    int status = conn.getResponseCode();
+    InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+    if (in == null)
+      return new Reply(status, MissingNode.getInstance());
+    try {
+      JsonNode json = mapper.readTree(in);
+      return new Reply(status, json == null ? MissingNode.getInstance() : json);
+    } catch (IOException e) {
+      // Not JSON, only the status matters then
+      return new Reply(status, MissingNode.getInstance());
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Post a request and read its JSON response, failing on the error statuses. */
+  public static JsonNode post(String path, String body) throws IOException {
+    Reply reply = send("POST", path, body);
+    if (reply.getStatus() >= 400)
+      throw new IOException("Search request " + path + " failed (HTTP " + reply.getStatus() + ")");
+    return reply.getBody();
+  }
+}